@@ -0,0 +1,59 @@
+package com.szepep.dixa.primes.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first request of a fresh generator, every invocation gets a new generator so the whole range is computed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(3)
+@State(Scope.Benchmark)
+public class ColdGeneratorBenchmark {
+
+    @Param({Generators.LAZY, Generators.ERATOSTHENES, Generators.NON_BLOCKING, Generators.SEGMENTED,
+            Generators.SEGMENTED_PARALLEL})
+    public String generator;
+
+    @Param({"100000", "1000000", "10000000"})
+    public int n;
+
+    private Generator instance;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        instance = Generators.create(generator);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        Generators.close(instance);
+    }
+
+    @Benchmark
+    public void chunks(Blackhole blackhole) {
+        instance.primeChunksUntil(n).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public int count() {
+        return instance.countUntil(n);
+    }
+}
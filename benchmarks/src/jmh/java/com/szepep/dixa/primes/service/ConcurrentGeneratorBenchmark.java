@@ -0,0 +1,81 @@
+package com.szepep.dixa.primes.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent requests with random number between n / 2 and n sharing one generator. The generator is created for every
+ * iteration, the first requests of an iteration compete in extending the sieve.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentGeneratorBenchmark {
+
+    @Param({Generators.LAZY, Generators.ERATOSTHENES, Generators.NON_BLOCKING, Generators.SEGMENTED,
+            Generators.SEGMENTED_PARALLEL})
+    public String generator;
+
+    @Param({"1000000", "10000000"})
+    public int n;
+
+    private Generator instance;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        instance = Generators.create(generator);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Generators.close(instance);
+    }
+
+    private void request(Blackhole blackhole) {
+        int number = ThreadLocalRandom.current().nextInt(n / 2, n + 1);
+        instance.primeChunksUntil(number).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(Blackhole blackhole) {
+        request(blackhole);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads4(Blackhole blackhole) {
+        request(blackhole);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(Blackhole blackhole) {
+        request(blackhole);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void threads32(Blackhole blackhole) {
+        request(blackhole);
+    }
+}
@@ -0,0 +1,45 @@
+package com.szepep.dixa.primes.service;
+
+/**
+ * The benchmarked generators by name, a new generator is added here and to the {@code generator} parameters of the
+ * benchmarks.
+ */
+final class Generators {
+
+    static final String LAZY = "lazy";
+    static final String ERATOSTHENES = "eratosthenes";
+    static final String NON_BLOCKING = "non-blocking";
+    static final String SEGMENTED = "segmented";
+    static final String SEGMENTED_PARALLEL = "segmented-parallel";
+
+    /**
+     * Sieving threads of the parallel segmented generator.
+     */
+    private static final int PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private Generators() {
+    }
+
+    static Generator create(String name) {
+        switch (name) {
+            case LAZY:
+                return new LazyGenerator();
+            case ERATOSTHENES:
+                return new EratosthenesGenerator();
+            case NON_BLOCKING:
+                return new NonBlockingEratosthenesGenerator();
+            case SEGMENTED:
+                return new SegmentedEratosthenesGenerator();
+            case SEGMENTED_PARALLEL:
+                return new SegmentedEratosthenesGenerator(
+                        SegmentedEratosthenesGenerator.DEFAULT_SEGMENT_BYTES, PARALLELISM);
+            default:
+                throw new IllegalArgumentException("Unknown generator " + name);
+        }
+    }
+
+    static void close(Generator generator) {
+        if (generator instanceof SegmentedEratosthenesGenerator)
+            ((SegmentedEratosthenesGenerator) generator).shutdown();
+    }
+}
@@ -0,0 +1,71 @@
+package com.szepep.dixa.primes.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests served from an already computed range, the generator is created and warmed up once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WarmGeneratorBenchmark {
+
+    @Param({Generators.LAZY, Generators.ERATOSTHENES, Generators.NON_BLOCKING, Generators.SEGMENTED,
+            Generators.SEGMENTED_PARALLEL})
+    public String generator;
+
+    @Param({"100000", "1000000", "10000000"})
+    public int n;
+
+    private Generator instance;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        instance = Generators.create(generator);
+        instance.primeChunksUntil(n).forEach(chunk -> {/* warm up */});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Generators.close(instance);
+    }
+
+    /**
+     * Boxed stream, as consumed by the {@code get} RPC.
+     */
+    @Benchmark
+    public void primes(Blackhole blackhole) {
+        instance.primesUntil(n).forEach(blackhole::consume);
+    }
+
+    /**
+     * Primitive chunks, as consumed by the {@code getChunks} RPC.
+     */
+    @Benchmark
+    public void chunks(Blackhole blackhole) {
+        instance.primeChunksUntil(n).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public int count() {
+        return instance.countUntil(n);
+    }
+}
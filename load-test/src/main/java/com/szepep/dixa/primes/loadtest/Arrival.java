@@ -0,0 +1,35 @@
+package com.szepep.dixa.primes.loadtest;
+
+import java.util.SplittableRandom;
+
+/**
+ * Open-loop arrival process, the requests are sent at the scheduled time regardless of the responses.
+ */
+public enum Arrival {
+    /**
+     * Equally spaced requests.
+     */
+    CONSTANT {
+        @Override
+        long gapNanos(SplittableRandom random, double rate) {
+            return Math.round(NANOS_PER_SECOND / rate);
+        }
+    },
+    /**
+     * Exponentially distributed gaps, the requests arrive independently of each other.
+     */
+    POISSON {
+        @Override
+        long gapNanos(SplittableRandom random, double rate) {
+            return Math.round(-Math.log(1 - random.nextDouble()) * NANOS_PER_SECOND / rate);
+        }
+    };
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * @param rate Requests per second
+     * @return Nanoseconds until the next request.
+     */
+    abstract long gapNanos(SplittableRandom random, double rate);
+}
@@ -0,0 +1,99 @@
+package com.szepep.dixa.primes.loadtest;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends {@code /prime/{number}} requests in open loop, a request is sent at its scheduled time even if the previous
+ * ones are still running. The responses are consumed without parsing, the primes are counted by the separators.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class LoadGenerator {
+
+    private final WebClient client;
+    private final LoadTest.LoadTestConfig config;
+
+    /**
+     * Sends the requests at the rate for the duration and waits for the responses at most the drain timeout.
+     *
+     * @param rate Requests per second
+     */
+    public Result run(double rate, Duration duration) throws InterruptedException {
+        var result = new Result(rate);
+        var random = new SplittableRandom(config.getSeed());
+        var outstanding = new AtomicInteger();
+
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        for (long scheduled = start; scheduled < end; scheduled += config.getArrival().gapNanos(random, rate)) {
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            int number = config.getDistribution().next(random, config.getMin(), config.getMax());
+
+            outstanding.incrementAndGet();
+            result.recordSent();
+            request(number, scheduled, result)
+                    .doFinally(signal -> outstanding.decrementAndGet())
+                    .subscribe();
+        }
+
+        long drainEnd = System.nanoTime() + config.getDrainTimeout().toNanos();
+        while (outstanding.get() > 0 && System.nanoTime() < drainEnd) Thread.sleep(10);
+        if (outstanding.get() > 0) log.warn("{} requests did not complete at {} req/s", outstanding.get(), rate);
+        result.finished(System.nanoTime() - start);
+        return result;
+    }
+
+    private Mono<Void> request(int number, long scheduled, Result result) {
+        var body = new Body();
+        return client.get()
+                .uri("/prime/{number}", number)
+                .exchangeToMono(response -> response.statusCode().is2xxSuccessful()
+                        ? response.bodyToFlux(DataBuffer.class)
+                        .doOnNext(buffer -> {
+                            if (body.bytes == 0) result.recordFirstByte(scheduled);
+                            body.consume(buffer);
+                        })
+                        .then()
+                        : response.releaseBody()
+                        .then(Mono.error(new IllegalStateException("HTTP " + response.rawStatusCode()))))
+                .doOnSuccess(v -> result.recordCompleted(scheduled, body.primes()))
+                .doOnError(e -> {
+                    log.debug("Request of {} failed", number, e);
+                    result.recordError();
+                })
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    /**
+     * Counts the comma separated primes of one response, the buffers of a response arrive sequentially.
+     */
+    private static class Body {
+        private long bytes = 0;
+        private long separators = 0;
+
+        void consume(DataBuffer buffer) {
+            try {
+                for (int i = buffer.readPosition(); i < buffer.writePosition(); ++i)
+                    if (buffer.getByte(i) == ',') ++separators;
+                bytes += buffer.readableByteCount();
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+        }
+
+        long primes() {
+            return bytes == 0 ? 0 : separators + 1;
+        }
+    }
+}
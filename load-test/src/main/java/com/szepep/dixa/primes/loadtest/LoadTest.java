@@ -0,0 +1,174 @@
+package com.szepep.dixa.primes.loadtest;
+
+import com.szepep.dixa.primes.proxy.PrimeProxy;
+import com.szepep.dixa.primes.service.PrimesApplication;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End-to-end load test of the proxy and the server.
+ * <p>
+ * Both applications are started in this JVM unless an external proxy is configured, then the arrival rates are run
+ * one after the other. Every application reads {@code load-test.yaml}, the command line arguments are passed to all of
+ * them, e.g. {@code --generator.type=segmented --load-test.rates=100,200}.
+ */
+@SpringBootApplication
+@Slf4j
+@AllArgsConstructor
+public class LoadTest implements CommandLineRunner {
+
+    private static final String CONFIG_NAME = "spring.config.name=load-test";
+
+    public static void main(String... args) {
+        var context = new SpringApplicationBuilder(LoadTest.class)
+                .web(WebApplicationType.NONE)
+                .properties(CONFIG_NAME)
+                .run(args);
+        System.exit(SpringApplication.exit(context));
+    }
+
+    private final LoadTestConfig config;
+
+    @Override
+    public void run(String... args) throws Exception {
+        var applications = new ArrayList<ConfigurableApplicationContext>();
+        try {
+            if (config.getUrl() == null) {
+                applications.add(start(PrimesApplication.class, WebApplicationType.NONE, args));
+                applications.add(start(PrimeProxy.class, WebApplicationType.REACTIVE, args));
+            }
+            var url = config.getUrl() != null
+                    ? config.getUrl()
+                    : "http://localhost:" + applications.get(1).getEnvironment().getProperty("local.server.port");
+            log.info("Load testing {}", url);
+
+            var provider = ConnectionProvider.builder("load-test")
+                    .maxConnections(config.getConnections())
+                    .pendingAcquireMaxCount(-1)
+                    .build();
+            var client = WebClient.builder()
+                    .baseUrl(url)
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(provider)))
+                    .build();
+            var generator = new LoadGenerator(client, config);
+
+            if (!config.getWarmUp().isZero() && !config.getRates().isEmpty()) {
+                log.info("Warming up for {}", config.getWarmUp());
+                generator.run(config.getRates().get(0), config.getWarmUp());
+            }
+            var results = new ArrayList<Result>();
+            for (double rate : config.getRates()) {
+                log.info("Running {} req/s for {}", rate, config.getDuration());
+                var result = generator.run(rate, config.getDuration());
+                log.info("{}", result);
+                write(result);
+                summarize(result);
+                results.add(result);
+            }
+            results.forEach(result -> log.info("{}", result));
+            provider.dispose();
+        } finally {
+            applications.forEach(ConfigurableApplicationContext::close);
+        }
+    }
+
+    private static ConfigurableApplicationContext start(Class<?> application, WebApplicationType type, String... args) {
+        return new SpringApplicationBuilder(application)
+                .web(type)
+                .properties(CONFIG_NAME)
+                .run(args);
+    }
+
+    private void write(Result result) throws IOException {
+        if (config.getHistograms() == null) return;
+        Files.createDirectories(config.getHistograms());
+        var file = config.getHistograms().resolve(String.format("latency-%.0f.hgrm", result.getRate()));
+        try (var out = new PrintStream(Files.newOutputStream(file))) {
+            result.writeLatency(out);
+        }
+    }
+
+    /**
+     * Appends the row of the run to the summary table, the header is written with the first row.
+     */
+    private void summarize(Result result) throws IOException {
+        if (config.getSummary() == null) return;
+        var parent = config.getSummary().toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        var row = result.summaryRow(config.getLabel());
+        Files.writeString(config.getSummary(), Files.exists(config.getSummary()) ? row : Result.summaryHeader() + row,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "load-test")
+    @Data
+    public static class LoadTestConfig {
+        /**
+         * Proxy under the test, the proxy and the server are started in this JVM if not set.
+         */
+        private String url;
+        /**
+         * Requests per second, one run per rate.
+         */
+        private List<Double> rates = List.of(10.0, 50.0, 100.0);
+        private Duration duration = Duration.ofSeconds(30);
+        /**
+         * Run at the first rate before the measurement, not recorded.
+         */
+        private Duration warmUp = Duration.ofSeconds(10);
+        /**
+         * Waiting for the responses after the last request of a run.
+         */
+        private Duration drainTimeout = Duration.ofSeconds(30);
+        private Arrival arrival = Arrival.POISSON;
+        private NumberDistribution distribution = NumberDistribution.UNIFORM;
+        /**
+         * Smallest requested number.
+         */
+        private int min = 0;
+        /**
+         * Largest requested number.
+         */
+        private int max = 1_000_000;
+        private long seed = 42;
+        /**
+         * Connections to the proxy, the requests above it wait for a connection.
+         */
+        private int connections = 500;
+        /**
+         * Directory of the latency histograms, one file per rate. Not written if not set.
+         */
+        private Path histograms = Path.of("build", "load-test");
+        /**
+         * Markdown table of the runs, one row per rate appended by every run. Not written if not set.
+         */
+        private Path summary;
+        /**
+         * The first column of the summary rows, e.g. the compared executor of the server.
+         */
+        private String label = "";
+    }
+}
@@ -0,0 +1,38 @@
+package com.szepep.dixa.primes.loadtest;
+
+import java.util.SplittableRandom;
+
+/**
+ * Distribution of the requested numbers between the minimum and the maximum, both inclusive.
+ */
+public enum NumberDistribution {
+    /**
+     * Always the maximum.
+     */
+    FIXED {
+        @Override
+        int next(SplittableRandom random, int min, int max) {
+            return max;
+        }
+    },
+    UNIFORM {
+        @Override
+        int next(SplittableRandom random, int min, int max) {
+            return (int) random.nextLong(min, max + 1L);
+        }
+    },
+    /**
+     * Uniform by the order of magnitude, the small numbers are requested as often as the large ones.
+     */
+    LOG_UNIFORM {
+        @Override
+        int next(SplittableRandom random, int min, int max) {
+            double low = Math.log(min + 1.0);
+            double high = Math.log(max + 1.0);
+            long number = Math.round(Math.exp(low + random.nextDouble() * (high - low))) - 1;
+            return (int) Math.max(min, Math.min(max, number));
+        }
+    };
+
+    abstract int next(SplittableRandom random, int min, int max);
+}
@@ -0,0 +1,148 @@
+package com.szepep.dixa.primes.loadtest;
+
+import lombok.Getter;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements of one arrival rate. The latencies are measured from the scheduled time of the request, a request
+ * delayed by the load generator or the connection pool counts its waiting time too. Recorded concurrently by the
+ * response threads.
+ */
+public class Result {
+
+    @Getter
+    private final double rate;
+
+    /**
+     * Time to the first byte of the body in microseconds.
+     */
+    @Getter
+    private final Histogram timeToFirstByte = new ConcurrentHistogram(3);
+
+    /**
+     * Time to the end of the body in microseconds.
+     */
+    @Getter
+    private final Histogram latency = new ConcurrentHistogram(3);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder primes = new LongAdder();
+
+    private volatile long elapsedNanos;
+
+    Result(double rate) {
+        this.rate = rate;
+    }
+
+    void recordSent() {
+        sent.increment();
+    }
+
+    void recordFirstByte(long scheduledNanos) {
+        timeToFirstByte.recordValue(micros(scheduledNanos));
+    }
+
+    void recordCompleted(long scheduledNanos, long primeCount) {
+        latency.recordValue(micros(scheduledNanos));
+        primes.add(primeCount);
+        completed.increment();
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void finished(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    private static long micros(long scheduledNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduledNanos));
+    }
+
+    public long sent() {
+        return sent.sum();
+    }
+
+    public long completed() {
+        return completed.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public long primes() {
+        return primes.sum();
+    }
+
+    /**
+     * @return Completed requests per second, from the first scheduled request until the last response.
+     */
+    public double throughput() {
+        return elapsedNanos == 0 ? 0 : completed() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return Primes received per second, from the first scheduled request until the last response.
+     */
+    public double primesPerSecond() {
+        return elapsedNanos == 0 ? 0 : primes() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * One line summary of the histogram in milliseconds.
+     */
+    static String percentiles(Histogram histogram) {
+        return String.format("p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f ms",
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Header of the Markdown table of {@link #summaryRow(String)}.
+     */
+    static String summaryHeader() {
+        return String.format("| run | rate (req/s) | p50 (ms) | p99 (ms) | throughput (req/s) | errors |%n"
+                + "|-----|-------------:|---------:|---------:|-------------------:|-------:|%n");
+    }
+
+    /**
+     * One row of a Markdown table comparing the runs, the total latency in milliseconds.
+     *
+     * @param label The compared setting of the run, e.g. the executor of the server.
+     */
+    String summaryRow(String label) {
+        return String.format("| %s | %.0f | %.2f | %.2f | %.0f | %d |%n",
+                label, rate,
+                latency.getValueAtPercentile(50) / 1000.0,
+                latency.getValueAtPercentile(99) / 1000.0,
+                throughput(), errors());
+    }
+
+    /**
+     * Writes the full latency distribution in milliseconds, in the format of the HdrHistogram plotter.
+     */
+    void writeLatency(PrintStream out) {
+        latency.outputPercentileDistribution(out, 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.0f req/s: sent %d, completed %d, errors %d, %.0f req/s, %.0f primes/s%n"
+                        + "  time to first byte %s%n"
+                        + "  latency            %s",
+                rate, sent(), completed(), errors(), throughput(), primesPerSecond(),
+                percentiles(timeToFirstByte), percentiles(latency));
+    }
+}
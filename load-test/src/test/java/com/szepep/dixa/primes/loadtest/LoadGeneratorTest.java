@@ -0,0 +1,85 @@
+package com.szepep.dixa.primes.loadtest;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadGeneratorTest {
+
+    private static LoadGenerator generator(LoadTest.LoadTestConfig config, HttpStatus status, String body) {
+        var client = WebClient.builder()
+                .exchangeFunction(request -> Mono.just(ClientResponse.create(status).body(body).build()))
+                .build();
+        return new LoadGenerator(client, config);
+    }
+
+    @Test
+    void requestsAreSentAtTheRate() throws Exception {
+        var config = new LoadTest.LoadTestConfig();
+        config.setArrival(Arrival.CONSTANT);
+
+        var result = generator(config, HttpStatus.OK, "2,3,5,7,11").run(100, Duration.ofMillis(500));
+
+        assertEquals(50, result.sent());
+        assertEquals(50, result.completed());
+        assertEquals(0, result.errors());
+        assertEquals(250, result.primes());
+        assertEquals(50, result.getLatency().getTotalCount());
+        assertEquals(50, result.getTimeToFirstByte().getTotalCount());
+        assertTrue(result.throughput() > 0);
+    }
+
+    @Test
+    void failedRequestsAreCounted() throws Exception {
+        var config = new LoadTest.LoadTestConfig();
+        config.setArrival(Arrival.CONSTANT);
+
+        var result = generator(config, HttpStatus.BAD_REQUEST, "error").run(100, Duration.ofMillis(100));
+
+        assertEquals(10, result.sent());
+        assertEquals(0, result.completed());
+        assertEquals(10, result.errors());
+        assertEquals(0, result.getLatency().getTotalCount());
+    }
+
+    @Test
+    void summaryRowHasTheColumnsOfTheHeader() throws Exception {
+        var config = new LoadTest.LoadTestConfig();
+        config.setArrival(Arrival.CONSTANT);
+
+        var row = generator(config, HttpStatus.OK, "2,3,5").run(100, Duration.ofMillis(200)).summaryRow("sieve");
+
+        assertTrue(row.startsWith("| sieve | 100 | "), row);
+        assertTrue(row.trim().endsWith("| 0 |"), row);
+        var header = Result.summaryHeader().lines().findFirst().orElseThrow();
+        assertEquals(header.chars().filter(c -> c == '|').count(), row.chars().filter(c -> c == '|').count());
+    }
+
+    @Test
+    void numbersAreBetweenTheLimits() {
+        var random = new SplittableRandom(1);
+        for (var distribution : NumberDistribution.values())
+            IntStream.range(0, 10_000).forEach(i -> {
+                int number = distribution.next(random, 10, Integer.MAX_VALUE);
+                assertTrue(number >= 10, distribution + " " + number);
+            });
+        assertEquals(1_000, NumberDistribution.FIXED.next(random, 0, 1_000));
+    }
+
+    @Test
+    void poissonArrivalsHaveTheRate() {
+        var random = new SplittableRandom(1);
+        long total = 0;
+        for (int i = 0; i < 100_000; ++i) total += Arrival.POISSON.gapNanos(random, 1_000);
+        assertEquals(1_000_000, total / 100_000.0, 20_000, "Mean gap of 1ms");
+        assertEquals(1_000_000, Arrival.CONSTANT.gapNanos(random, 1_000));
+    }
+}
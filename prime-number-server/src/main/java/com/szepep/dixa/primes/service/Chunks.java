@@ -0,0 +1,79 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Utilities of the prime chunks, see {@link Generator#primeChunksUntil(int)}.
+ */
+final class Chunks {
+
+    private Chunks() {
+    }
+
+    /**
+     * @param primes Ascending primes.
+     * @param from   The lower bound, inclusive.
+     * @return The primes not less than the lower bound, the same array if there are none below it.
+     */
+    static int[] tailFrom(int[] primes, int from) {
+        if (primes.length == 0 || primes[0] >= from) return primes;
+        int idx = Arrays.binarySearch(primes, from);
+        return Arrays.copyOfRange(primes, idx >= 0 ? idx : -idx - 1, primes.length);
+    }
+
+    /**
+     * Regroups the chunks lazily into chunks of exactly size primes, only the last one can be smaller.
+     *
+     * @param chunks Stream of chunks.
+     * @param size   Size of the result chunks.
+     * @return Stream of non-empty chunks with the same primes in the same order.
+     */
+    static Stream<int[]> resize(Stream<int[]> chunks, int size) {
+        Preconditions.checkArgument(size > 0, "The chunk size must be positive");
+
+        var source = chunks.iterator();
+        var resized = new Iterator<int[]>() {
+
+            private int[] current = new int[0];
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (position == current.length && source.hasNext()) {
+                    current = source.next();
+                    position = 0;
+                }
+                return position < current.length;
+            }
+
+            @Override
+            public int[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (position == 0 && current.length == size) {
+                    position = size;
+                    return current; // no copy if the chunk has the right size already
+                }
+
+                var chunk = new int[size];
+                int length = 0;
+                while (length < size && hasNext()) {
+                    int n = Math.min(size - length, current.length - position);
+                    System.arraycopy(current, position, chunk, length, n);
+                    position += n;
+                    length += n;
+                }
+                return length == size ? chunk : Arrays.copyOf(chunk, length);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(resized, Spliterator.ORDERED), false)
+                .onClose(chunks::close);
+    }
+}
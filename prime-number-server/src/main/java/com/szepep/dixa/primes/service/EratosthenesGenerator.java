@@ -1,69 +1,203 @@
 package com.szepep.dixa.primes.service;
 
 import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.BitSet;
+import java.nio.LongBuffer;
+import java.util.OptionalInt;
+import java.util.function.IntFunction;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * Generator using Eratosthenes sieve. Returns continuous results and does lazy computation.
+ * <p>
+ * The bitmap is made of immutable segments, see {@link SieveSegments}. The missing segments are sieved in order, one
+ * segment per lock, the readers of the sieved range never lock. The rank index of the segments answers the counting
+ * queries without streaming.
+ * <p>
+ * A range above the sieved prefix, e.g. a partition of a scattered request, sieves only its own segments without lock,
+ * they are counted once the prefix reaches them.
+ * <p>
+ * With a memory bound the cold segments are evicted and sieved again on demand without lock.
+ * <p>
+ * Reports the segments and the time of sieving and waiting for the lock, see {@link SieveMetrics}.
  */
 @Component
 @Primary
+@ConditionalOnProperty(prefix = "generator", name = "type", havingValue = "eratosthenes", matchIfMissing = true)
 @ThreadSafe
 public final class EratosthenesGenerator implements Generator {
 
-    private final int batchSize = 1_000;
-
-    private final BitSet bits = new BitSet();
-    private volatile int max = 2;
+    private final SieveSegments segments;
+    private final SieveMetrics metrics = new SieveMetrics();
 
     EratosthenesGenerator() {
-        bits.clear();
-        bits.set(2);
+        this(SieveSegments.SEGMENT_COUNT);
+    }
+
+    @Autowired
+    EratosthenesGenerator(EratosthenesConfig config) {
+        this(SieveSegments.segmentsOf(config.getMemoryBytes()));
+    }
+
+    /**
+     * @param maxSegments The largest number of segments kept in memory.
+     */
+    EratosthenesGenerator(int maxSegments) {
+        segments = new SieveSegments(maxSegments);
+    }
+
+    SieveSegments segments() {
+        return segments;
+    }
+
+    /**
+     * Returns the segment, the missing segments until it are sieved first.
+     */
+    private LongBuffer segment(int segment) {
+        var words = segments.get(segment);
+        return words != null ? words : sieve(segment);
     }
 
-    synchronized void sieve(int n) {
-        if (n <= max) return; // other thread already computed
+    private LongBuffer sieve(int segment) {
+        LongBuffer words;
+        while ((words = segments.peek(segment)) == null) {
+            // evicted segment, the rank is still valid
+            if (segment < segments.contiguous()) return segments.publish(segment, SieveSegments.sieve(segment));
+            // the lock is released after every segment, a request waits only for the segments it needs
+            sieveNext(segment, System.nanoTime());
+        }
+        return words;
+    }
 
-        int nPlus1 = n + 1;
+    /**
+     * Returns the segment of a range above the sieved prefix, a missing segment is sieved alone, the segments before it
+     * are not sieved.
+     */
+    private LongBuffer windowSegment(int segment) {
+        var words = segments.get(segment);
+        return words != null ? words : segments.publish(segment, SieveSegments.sieve(segment));
+    }
 
-        bits.clear(max + 1, nPlus1);
-        bits.flip(max + 1, nPlus1);
-        double sqrt = Math.ceil(Math.sqrt(n));
-        for (int i = 2; i < sqrt; ++i)
-            if (bits.get(i)) {
-                int start = max <= i * i
-                        ? (i * i)                           // start from the beginning
-                        : max - ((max - (i * i)) % i) + i;  // continue where we stopped
-                for (int j = start; j >= 0 && j < nPlus1; j += i)
-                    bits.set(j, false);
-            }
-        max = n;
+    /**
+     * @param requested Time of requesting the lock.
+     */
+    private synchronized void sieveNext(int segment, long requested) {
+        metrics.waited(requested);
+        int next = Math.min(segments.contiguous(), segment);
+        if (segments.peek(next) == null) {
+            long start = System.nanoTime();
+            segments.publish(next, SieveSegments.sieve(next));
+            metrics.extended(start);
+        }
+    }
+
+    @Override
+    public int residentLimit() {
+        return segments.residentLimit();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        segments.bindTo(registry);
+        metrics.bindTo(registry);
     }
 
     @Override
     public Stream<Integer> primesUntil(final int number) throws IllegalArgumentException {
+        return primeChunksUntil(number)
+                .flatMapToInt(IntStream::of)
+                .boxed();
+    }
+
+    @Override
+    public Stream<int[]> primeChunksUntil(final int number) throws IllegalArgumentException {
         Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        return primeChunksFrom(0, number);
+    }
+
+    /**
+     * One chunk per segment from the segment of the lower bound. A lower bound above the sieved prefix sieves only the
+     * segments of the range, the prefix is not extended until it.
+     */
+    @Override
+    public Stream<int[]> primeChunksFrom(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+
+        int first = SieveSegments.segmentOf(from);
+        int last = SieveSegments.segmentOf(number);
+        IntFunction<LongBuffer> lookup = first > segments.contiguous() ? this::windowSegment : this::segment;
+        return IntStream.rangeClosed(first, last)
+                .mapToObj(s -> {
+                    var primes = Sieve.primesOf(lookup.apply(s),
+                            s == last ? SieveSegments.bitOf(number) + 1 : SieveSegments.SEGMENT_BITS,
+                            (long) s * SieveSegments.SEGMENT_BITS, false);
+                    return s == first ? Chunks.tailFrom(primes, from) : primes;
+                })
+                .filter(chunk -> chunk.length > 0);
+    }
+
+    /**
+     * One step per segment.
+     */
+    @Override
+    public IntStream sieveSteps(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        return sieveSteps(0, number);
+    }
+
+    /**
+     * One step per segment from the segment of the lower bound.
+     */
+    @Override
+    public IntStream sieveSteps(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+
+        return IntStream.rangeClosed(SieveSegments.segmentOf(from), SieveSegments.segmentOf(number))
+                .map(s -> {
+                    segment(s);
+                    return Math.min(number, SieveSegments.lastNumberOf(s));
+                });
+    }
+
+    @Override
+    public int countUntil(final int number) throws IllegalArgumentException {
+        return segments.countUntil(number, this::segment);
+    }
+
+    @Override
+    public int nth(final int n) throws IllegalArgumentException {
+        return segments.nth(n, this::segment);
+    }
+
+    @Override
+    public OptionalInt lastPrimeUntil(final int number) throws IllegalArgumentException {
+        return segments.lastPrimeUntil(number, this::segment);
+    }
+
+    @Override
+    public boolean isPrime(final long number) {
+        return segments.isPrime(number);
+    }
 
-        return IntStream.range(0, number / batchSize + 1)
-                .boxed()
-                .flatMap(i -> {
-                            int from = i * batchSize;
-                            int to = (i + 1) * batchSize;
-
-                            // the volatile max acts as memory barrier, all previous computation must be visible
-                            // to current thread -> bits are up to date even if sieve is not called.
-                            if (to > max) sieve(to);
-                            return IntStream.range(from, to)
-                                    .filter(bits::get)
-                                    .boxed();
-                        }
-                )
-                .takeWhile(p -> p <= number);
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "generator.eratosthenes")
+    @Data
+    static class EratosthenesConfig {
+        /**
+         * Memory bound of the sieved segments, the cold segments above it are evicted. Not bounded if not positive.
+         */
+        private long memoryBytes = 0;
     }
 }
\ No newline at end of file
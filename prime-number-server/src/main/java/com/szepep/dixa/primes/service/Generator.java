@@ -1,11 +1,30 @@
 package com.szepep.dixa.primes.service;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.primitives.Ints;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.OptionalInt;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Generator of prime numbers;
+ * <p>
+ * The generator bean is bound to the meter registry, the sieve based generators report their sieve.
  */
-public interface Generator {
+public interface Generator extends MeterBinder {
+
+    /**
+     * Number of primes in one chunk of the default {@link #primeChunksUntil(int)}.
+     */
+    int DEFAULT_CHUNK_SIZE = 1024;
 
     /**
      * Generates a stream of prime numbers until the number
@@ -15,4 +34,186 @@ public interface Generator {
      * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
      */
     Stream<Integer> primesUntil(int number) throws IllegalArgumentException;
+
+    /**
+     * Generates the prime numbers until the number in chunks, without boxing every prime.
+     * <p>
+     * The default implementation packs {@link #primesUntil(int)}, the sieve based generators read their bitmap
+     * directly.
+     *
+     * @param number The limit of the prime numbers in result. No result is larger than number.
+     * @return Stream of non-empty chunks, the primes are ascending across the chunks.
+     * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
+     */
+    default Stream<int[]> primeChunksUntil(int number) throws IllegalArgumentException {
+        var chunks = Iterators.partition(primesUntil(number).iterator(), DEFAULT_CHUNK_SIZE);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED), false)
+                .map(Ints::toArray);
+    }
+
+    /**
+     * Generates the prime numbers between the bounds in chunks, as {@link #primeChunksUntil(int)} without the primes
+     * below the lower bound.
+     * <p>
+     * The default implementation drops the primes below the lower bound, the sieve based generators start reading
+     * their bitmap at the segment of the lower bound.
+     *
+     * @param from   The lower bound, inclusive.
+     * @param number The upper bound, inclusive.
+     * @return Stream of non-empty chunks, the primes are ascending across the chunks.
+     * @throws IllegalArgumentException when the bounds are not supported, e.g. negative, too large or empty.
+     */
+    default Stream<int[]> primeChunksFrom(int from, int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+        return primeChunksUntil(number)
+                .map(chunk -> Chunks.tailFrom(chunk, from))
+                .filter(chunk -> chunk.length > 0);
+    }
+
+    /**
+     * Sieves until the number lazily, every element of the stream is a bounded step of the work, e.g. one segment.
+     * Consuming the stream element by element lets the caller stop the sieving between the steps, e.g. when the request
+     * is cancelled.
+     * <p>
+     * The default implementation does the whole work in one step.
+     *
+     * @param number The limit of the sieve.
+     * @return Ascending numbers sieved until by the steps, the last one is the number.
+     * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
+     */
+    default IntStream sieveSteps(int number) throws IllegalArgumentException {
+        return IntStream.of(number).map(n -> {
+            countUntil(n);
+            return n;
+        });
+    }
+
+    /**
+     * Sieves between the bounds lazily, as {@link #sieveSteps(int)} without the steps below the lower bound. The
+     * segments before the lower bound are expected to be sieved already, e.g. by the previous call, they are not
+     * looked up again.
+     * <p>
+     * The default implementation sieves until the number in one step.
+     *
+     * @param from   The lower bound, inclusive.
+     * @param number The limit of the sieve.
+     * @return Ascending numbers sieved until by the steps, the last one is the number.
+     * @throws IllegalArgumentException when the bounds are not supported, e.g. negative, too large or empty.
+     */
+    default IntStream sieveSteps(int from, int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+        return sieveSteps(number);
+    }
+
+    /**
+     * Asynchronous variant of {@link #sieveSteps(int)}, every element is the future of a step. A step computed by other
+     * request is shared, the caller is not blocked while it waits for it.
+     * <p>
+     * The default implementation runs the steps synchronously.
+     *
+     * @param number The limit of the sieve.
+     * @return The steps in ascending order, the last one completes with the number.
+     * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
+     */
+    default Stream<CompletableFuture<Integer>> sieveStepsAsync(int number) throws IllegalArgumentException {
+        return sieveSteps(number).mapToObj(CompletableFuture::completedFuture);
+    }
+
+    /**
+     * Number of primes less than or equal to the number, pi(number).
+     * <p>
+     * The default implementation counts the chunks, the sieve based generators answer from a rank index.
+     *
+     * @param number The limit of the counted primes.
+     * @return Number of primes.
+     * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
+     */
+    default int countUntil(int number) throws IllegalArgumentException {
+        return primeChunksUntil(number).mapToInt(chunk -> chunk.length).sum();
+    }
+
+    /**
+     * The nth prime, the first prime is 2.
+     *
+     * @param n Index of the prime, starting from 1.
+     * @return The nth prime.
+     * @throws IllegalArgumentException when n is not positive or the nth prime is beyond the supported numbers.
+     */
+    default int nth(int n) throws IllegalArgumentException {
+        Preconditions.checkArgument(n > 0, "The index must be positive");
+        Preconditions.checkArgument(n <= PrimeCounting.PRIMES_IN_INT_RANGE,
+                "There are only " + PrimeCounting.PRIMES_IN_INT_RANGE + " primes in the int range");
+
+        int limit = (int) Math.min(PrimeCounting.nthPrimeUpperBound(n), Integer.MAX_VALUE - 1);
+        var chunks = primeChunksUntil(limit).iterator();
+        int remaining = n;
+        while (chunks.hasNext()) {
+            var chunk = chunks.next();
+            if (remaining <= chunk.length) return chunk[remaining - 1];
+            remaining -= chunk.length;
+        }
+        throw new IllegalArgumentException("The prime #" + n + " is not supported by the generator");
+    }
+
+    /**
+     * The largest prime less than or equal to the number.
+     *
+     * @param number The limit of the prime.
+     * @return The prime, empty if the number is less than 2.
+     * @throws IllegalArgumentException when the number is not supported, e.g. negative, too large.
+     */
+    default OptionalInt lastPrimeUntil(int number) throws IllegalArgumentException {
+        return primeChunksUntil(number)
+                .reduce((a, b) -> b)
+                .map(chunk -> OptionalInt.of(chunk[chunk.length - 1]))
+                .orElse(OptionalInt.empty());
+    }
+
+    /**
+     * Primality test of a single number.
+     * <p>
+     * The default implementation is a deterministic Miller-Rabin test, the sieve based generators read their bitmap
+     * if the number is already sieved.
+     *
+     * @param number The number.
+     * @return True if the number is prime, numbers less than 2 are not primes.
+     */
+    default boolean isPrime(long number) {
+        return MillerRabin.isPrime(number);
+    }
+
+    /**
+     * The largest number whose sieve is kept in memory within the memory bound of the generator, sieving beyond it
+     * evicts the earlier segments. The pre-sieving does not extend the sieve beyond it.
+     * <p>
+     * The default implementation is not bounded.
+     */
+    default int residentLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Generates the prime numbers of the range in chunks. Only the range is sieved by the base primes until sqrt(to),
+     * no bitmap from zero is kept. Every window of the range crosses off all base primes until sqrt(to), the cost
+     * grows with the size of the range plus the number of windows times sqrt(to) / ln(sqrt(to)), see
+     * {@link WindowSieve}.
+     *
+     * @param from The lower bound, inclusive.
+     * @param to   The upper bound, inclusive.
+     * @return Stream of non-empty chunks, the primes are ascending across the chunks.
+     * @throws IllegalArgumentException when the range is not supported, e.g. negative, too large or empty.
+     */
+    default Stream<long[]> primeChunksBetween(long from, long to) throws IllegalArgumentException {
+        Preconditions.checkArgument(from <= to, "The lower bound must be less than or equal to the upper bound");
+        return WindowSieve.chunksBetween(from, to);
+    }
+
+    /**
+     * The default implementation reports nothing.
+     */
+    @Override
+    default void bindTo(MeterRegistry registry) {
+    }
 }
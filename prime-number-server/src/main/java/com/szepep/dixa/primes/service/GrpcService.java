@@ -1,17 +1,49 @@
 package com.szepep.dixa.primes.service;
 
-import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
+import io.grpc.CompressorRegistry;
+import io.grpc.Metadata;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.protobuf.services.HealthStatusManager;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.grpc.MetricCollectingServerInterceptor;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Slf4j
 @Component
@@ -20,30 +52,236 @@ public class GrpcService {
 
     private final ReactorServiceGrpc.ServiceImplBase service;
     private final GrpcConfig config;
+    private final PreSieving preSieving;
+    private final MeterRegistry registry;
+
+    private static final String IDENTITY = "identity";
+
+    private final HealthStatusManager health = new HealthStatusManager();
 
     private Server server;
+    private ExecutorService executor;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
 
     public void start() throws IOException {
+        var compression = config.getCompression();
+        Preconditions.checkArgument(IDENTITY.equals(compression)
+                        || CompressorRegistry.getDefaultInstance().lookupCompressor(compression) != null,
+                "Unknown compression %s", compression);
+        boolean epoll = epoll();
         log.info("Starting gRPC on port {}.", config.getPort());
-        server = ServerBuilder
-                .forPort(config.getPort())
-                .addService(service)
+        // readiness: not serving until the sieve is warmed up
+        health.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.NOT_SERVING);
+        Gauge.builder("grpc.server.ready", preSieving, p -> p.warmedUp().isDone() ? 1 : 0)
+                .description("1 once the server reports serving")
+                .register(registry);
+        // call counts and processing times per method and status
+        var metrics = new MetricCollectingServerInterceptor(registry);
+        metrics.preregisterService(service);
+        var builder = configure(NettyServerBuilder.forPort(config.getPort()), epoll);
+        // the last interceptor runs first, a bounded call is admitted before anything else runs
+        var interceptors = executor instanceof ThreadPoolExecutor
+                ? new ServerInterceptor[]{preSieving, metrics, compression(), bounded((ThreadPoolExecutor) executor)}
+                : new ServerInterceptor[]{preSieving, metrics, compression()};
+        server = builder
+                .addService(ServerInterceptors.intercept(service, interceptors))
+                .addService(health.getHealthService())
                 .build()
                 .start();
-        log.info("gRPC server started, listening on {}.", config.getPort());
+        log.info("gRPC server started, listening on {}, {} executor, {} transport.",
+                config.getPort(), config.getExecutor(), epoll ? "epoll" : "nio");
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            log.info("Shutting down gRPC server.");
-            GrpcService.this.stop();
-            log.info("gRPC server shut down successfully.");
-        }));
+        preSieving.warmedUp().thenRun(() -> {
+            health.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, ServingStatus.SERVING);
+            log.info("gRPC server is ready.");
+        });
+    }
+
+    /**
+     * Applies the executor model, the transport and the HTTP/2 settings of the configuration.
+     */
+    private NettyServerBuilder configure(NettyServerBuilder builder, boolean epoll) {
+        switch (config.getExecutor()) {
+            case DIRECT:
+                builder.directExecutor();
+                break;
+            case BOUNDED:
+                // the event loop admits the calls and hands them over to the pool, see bounded()
+                executor = new ThreadPoolExecutor(threads(), threads(), 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(), threadFactory("grpc-executor-%d"));
+                builder.directExecutor();
+                break;
+            case SIEVE:
+                executor = new ForkJoinPool(threads(), pool -> {
+                    var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("grpc-sieve-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, true);
+                builder.executor(executor);
+                break;
+            default:
+                // the shared cached pool of gRPC
+        }
+
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(config.getBossThreads(), threadFactory("grpc-boss-%d"));
+            workerGroup = new EpollEventLoopGroup(config.getWorkerThreads(), threadFactory("grpc-worker-%d"));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            bossGroup = new NioEventLoopGroup(config.getBossThreads(), threadFactory("grpc-boss-%d"));
+            workerGroup = new NioEventLoopGroup(config.getWorkerThreads(), threadFactory("grpc-worker-%d"));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+        builder.bossEventLoopGroup(bossGroup).workerEventLoopGroup(workerGroup);
+
+        int window = Math.toIntExact(config.getFlowControlWindow().toBytes());
+        if (config.isAutoFlowControl()) builder.initialFlowControlWindow(window);
+        else builder.flowControlWindow(window);
+
+        return builder
+                .maxInboundMessageSize(Math.toIntExact(config.getMaxInboundMessageSize().toBytes()))
+                .keepAliveTime(config.getKeepAliveTime().toNanos(), TimeUnit.NANOSECONDS)
+                .keepAliveTimeout(config.getKeepAliveTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                .permitKeepAliveTime(config.getPermitKeepAliveTime().toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean epoll() {
+        if (!config.isEpoll()) return false;
+        if (Epoll.isAvailable()) return true;
+        log.warn("The epoll transport is not available, using nio", Epoll.unavailabilityCause());
+        return false;
+    }
+
+    private int threads() {
+        int threads = config.getExecutorThreads();
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    /**
+     * Admits at most executor-threads + executor-queue calls in progress, the calls above it are closed with
+     * RESOURCE_EXHAUSTED on the event loop. An admitted call runs on the pool, its callbacks are handed over in order.
+     */
+    private ServerInterceptor bounded(ThreadPoolExecutor pool) {
+        var permits = new Semaphore(pool.getMaximumPoolSize() + config.getExecutorQueue());
+        return new ServerInterceptor() {
+            @Override
+            public <Q, R> ServerCall.Listener<Q> interceptCall(ServerCall<Q, R> call, Metadata headers,
+                                                               ServerCallHandler<Q, R> next) {
+                if (!permits.tryAcquire()) {
+                    call.close(Status.RESOURCE_EXHAUSTED.withDescription("Too many calls in progress"), new Metadata());
+                    return new ServerCall.Listener<>() {
+                    };
+                }
+                return new PooledListener<>(MoreExecutors.newSequentialExecutor(pool), () -> {
+                    try {
+                        return next.startCall(call, headers);
+                    } catch (RuntimeException e) {
+                        call.close(Status.fromThrowable(e), new Metadata());
+                        return new ServerCall.Listener<>() {
+                        };
+                    }
+                }, permits::release);
+            }
+        };
+    }
+
+    /**
+     * Runs the start of the call and every callback on the sequential executor, the callbacks of a call neither
+     * overlap nor reorder. The release runs once the call is completed or cancelled.
+     */
+    private static class PooledListener<Q> extends ServerCall.Listener<Q> {
+
+        private final Executor sequential;
+        private final Runnable release;
+        /**
+         * Written and read on the sequential executor only.
+         */
+        private ServerCall.Listener<Q> delegate;
+
+        PooledListener(Executor sequential, Supplier<ServerCall.Listener<Q>> start, Runnable release) {
+            this.sequential = sequential;
+            this.release = release;
+            sequential.execute(() -> delegate = start.get());
+        }
+
+        @Override
+        public void onMessage(Q message) {
+            sequential.execute(() -> delegate.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+            sequential.execute(() -> delegate.onHalfClose());
+        }
+
+        @Override
+        public void onReady() {
+            sequential.execute(() -> delegate.onReady());
+        }
+
+        @Override
+        public void onCancel() {
+            sequential.execute(() -> {
+                try {
+                    delegate.onCancel();
+                } finally {
+                    release.run();
+                }
+            });
+        }
+
+        @Override
+        public void onComplete() {
+            sequential.execute(() -> {
+                try {
+                    delegate.onComplete();
+                } finally {
+                    release.run();
+                }
+            });
+        }
     }
 
-    @VisibleForTesting
+    /**
+     * Compresses the responses if the client accepts the compression, otherwise they are sent uncompressed.
+     */
+    private ServerInterceptor compression() {
+        var compression = config.getCompression();
+        return new ServerInterceptor() {
+            @Override
+            public <Q, R> ServerCall.Listener<Q> interceptCall(ServerCall<Q, R> call, Metadata headers,
+                                                               ServerCallHandler<Q, R> next) {
+                if (!IDENTITY.equals(compression)) call.setCompression(compression);
+                return next.startCall(call, headers);
+            }
+        };
+    }
+
+    /**
+     * Stops the server when the context is closed, Spring closes it on the shutdown of the JVM.
+     */
+    @PreDestroy
     void stop() {
         if (server != null) {
+            log.info("Shutting down gRPC server.");
+            health.enterTerminalState();
             server.shutdown();
+            try {
+                server.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        if (executor != null) executor.shutdown();
+        if (workerGroup != null) workerGroup.shutdownGracefully();
+        if (bossGroup != null) bossGroup.shutdownGracefully();
+        if (server != null) log.info("gRPC server shut down successfully.");
     }
 
     public void block() throws InterruptedException {
@@ -52,10 +290,71 @@ public class GrpcService {
         }
     }
 
+    /**
+     * Executor of the calls, the sieving of a request runs on it.
+     */
+    enum ExecutorModel {
+        /**
+         * The shared cached pool of gRPC, a thread per concurrent call.
+         */
+        DEFAULT,
+        /**
+         * The event loop of the connection, no thread hand-off. Only for requests served from the sieved range, a
+         * blocking sieve stalls every call of the event loop.
+         */
+        DIRECT,
+        /**
+         * Fixed pool with a bounded number of calls in progress, threads + queue. The event loop rejects the calls
+         * above it with RESOURCE_EXHAUSTED, it never runs a call itself.
+         */
+        BOUNDED,
+        /**
+         * Work-stealing pool of processor count threads for the CPU bound sieving, no oversubscription of the cores.
+         */
+        SIEVE
+    }
+
     @Configuration(proxyBeanMethods = false)
     @ConfigurationProperties(prefix = "grpc")
     @Data
     static class GrpcConfig {
         private int port;
+        private ExecutorModel executor = ExecutorModel.DEFAULT;
+        /**
+         * Threads of the bounded and the sieve executor, the number of processors if not positive.
+         */
+        private int executorThreads = 0;
+        /**
+         * Calls waiting for a thread of the bounded executor, more calls are rejected.
+         */
+        private int executorQueue = 1024;
+        /**
+         * Native epoll transport on Linux, nio if it is not available.
+         */
+        private boolean epoll = false;
+        /**
+         * Event loop threads accepting the connections and serving them, Netty's default (2 * processors) if zero.
+         */
+        private int bossThreads = 1;
+        private int workerThreads = 0;
+        /**
+         * The HTTP/2 flow-control window of a stream, the initial one tuned by the bandwidth-delay product if auto.
+         */
+        private DataSize flowControlWindow = DataSize.ofMegabytes(1);
+        private boolean autoFlowControl = true;
+        /**
+         * The largest request, e.g. a primality test batch.
+         */
+        private DataSize maxInboundMessageSize = DataSize.ofMegabytes(4);
+        /**
+         * Compression of the responses, identity or gzip, used only if the client accepts it.
+         */
+        private String compression = IDENTITY;
+        private Duration keepAliveTime = Duration.ofHours(2);
+        private Duration keepAliveTimeout = Duration.ofSeconds(20);
+        /**
+         * The most frequent keepalive ping accepted from a client.
+         */
+        private Duration permitKeepAliveTime = Duration.ofMinutes(5);
     }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.szepep.dixa.primes.service;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.LongBuffer;
+
+/**
+ * Segment store keeping the segments on the heap. Nothing survives a restart.
+ */
+@ThreadSafe
+final class HeapSegmentStore implements SegmentStore {
+
+    @Override
+    public int committed() {
+        return 0;
+    }
+
+    @Override
+    public LongBuffer read(int segment) {
+        throw new IndexOutOfBoundsException("No committed segment " + segment);
+    }
+
+    @Override
+    public LongBuffer write(int segment, long[] words) {
+        return LongBuffer.wrap(words);
+    }
+
+    @Override
+    public void commit(int count) {
+        /* noop */
+    }
+
+    @Override
+    public void close() {
+        /* noop */
+    }
+}
@@ -0,0 +1,217 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.base.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Segment store backed by a memory mapped file. The bitmap lives off-heap and survives restarts.
+ * <p>
+ * Layout of the file:
+ * <pre>
+ * [header slot 0][header slot 1][CRC32C of every segment][segments]
+ * </pre>
+ * A header slot holds the magic, format version, segment size, number of committed segments and the CRC of these
+ * fields. Commits alternate between the slots, a torn header write leaves the previous commit in the other slot
+ * intact. Every segment has its own checksum, verified when the file is opened. The committed segments are truncated
+ * before the first segment with wrong checksum and sieved again. The correctness does not depend on the order in which
+ * the OS flushes the pages, a wrong prime is never served from a torn write.
+ * <p>
+ * The whole file is mapped at once, it is sparse until the segments are written.
+ */
+@Slf4j
+@ThreadSafe
+final class MappedSegmentStore implements SegmentStore {
+
+    private static final long MAGIC = 0x5052494d45533031L; // PRIMES01
+    private static final int VERSION = 1;
+
+    private static final int SLOT_BYTES = 512;
+    private static final int SLOT_FIELDS_BYTES = 20;
+    private static final int CHECKSUMS_OFFSET = 2 * SLOT_BYTES;
+    private static final int PAGE_BYTES = 4096;
+
+    private final Path file;
+    private final int segmentBytes;
+    private final int segmentCount;
+    private final int dataOffset;
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+
+    private final int committedOnOpen;
+
+    @GuardedBy("this")
+    private int nextSlot;
+
+    MappedSegmentStore(Path file, int segmentBytes, int segmentCount) throws IOException {
+        Preconditions.checkArgument(segmentBytes % Long.BYTES == 0, "The segment size must be multiple of 8");
+
+        this.file = file;
+        this.segmentBytes = segmentBytes;
+        this.segmentCount = segmentCount;
+
+        long checksumsEnd = CHECKSUMS_OFFSET + (long) segmentCount * Integer.BYTES;
+        long alignedChecksumsEnd = (checksumsEnd + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+        long size = alignedChecksumsEnd + (long) segmentCount * segmentBytes;
+        Preconditions.checkArgument(size <= Integer.MAX_VALUE, "The bitmap file is too large to map");
+        dataOffset = (int) alignedChecksumsEnd;
+
+        channel = FileChannel.open(file, CREATE, READ, WRITE);
+        try {
+            lock = channel.tryLock();
+            Preconditions.checkState(lock != null, "The bitmap file %s is used by other process", file);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        committedOnOpen = verify();
+    }
+
+    /**
+     * Opens the store, any failure is rethrown unchecked.
+     */
+    static MappedSegmentStore open(Path file, int segmentBytes, int segmentCount) {
+        try {
+            return new MappedSegmentStore(file, segmentBytes, segmentCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the bitmap file " + file, e);
+        }
+    }
+
+    /**
+     * @return Number of committed segments with valid checksum.
+     */
+    private int verify() {
+        int slot0 = committedIn(0);
+        int slot1 = committedIn(1);
+        if (slot0 < 0 && slot1 < 0) {
+            log.info("No valid header in {}, starting with empty bitmap", file);
+            nextSlot = 0;
+            return 0;
+        }
+        nextSlot = slot0 >= slot1 ? 1 : 0;
+        int committed = Math.max(slot0, slot1);
+
+        for (int s = 0; s < committed; ++s) {
+            if (checksum(s) != buffer.getInt(checksumOffset(s))) {
+                log.warn("Segment {} of {} is corrupted, {} segments are sieved again", s, file, committed - s);
+                return s;
+            }
+        }
+        log.info("{} segments restored from {}", committed, file);
+        return committed;
+    }
+
+    /**
+     * @return Number of committed segments in the header slot, -1 if the slot is not valid.
+     */
+    private int committedIn(int slot) {
+        int offset = slot * SLOT_BYTES;
+        if (buffer.getLong(offset) != MAGIC) return -1;
+        if (buffer.getInt(offset + 8) != VERSION) return -1;
+        if (buffer.getInt(offset + SLOT_FIELDS_BYTES) != headerChecksum(offset)) return -1;
+        if (buffer.getInt(offset + 12) != segmentBytes) {
+            log.warn("The bitmap file {} has different segment size, it is discarded", file);
+            return -1;
+        }
+        int committed = buffer.getInt(offset + 16);
+        return committed >= 0 && committed <= segmentCount ? committed : -1;
+    }
+
+    private int headerChecksum(int offset) {
+        var crc = new CRC32C();
+        crc.update(bytes(offset, SLOT_FIELDS_BYTES));
+        return (int) crc.getValue();
+    }
+
+    private int checksum(int segment) {
+        var crc = new CRC32C();
+        crc.update(bytes(dataOffset + segment * segmentBytes, segmentBytes));
+        return (int) crc.getValue();
+    }
+
+    private int checksumOffset(int segment) {
+        return CHECKSUMS_OFFSET + segment * Integer.BYTES;
+    }
+
+    private ByteBuffer bytes(int offset, int length) {
+        return buffer.duplicate()
+                .position(offset)
+                .limit(offset + length)
+                .slice()
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private LongBuffer words(int segment) {
+        return bytes(dataOffset + segment * segmentBytes, segmentBytes).asLongBuffer();
+    }
+
+    @Override
+    public int committed() {
+        return committedOnOpen;
+    }
+
+    @Override
+    public LongBuffer read(int segment) {
+        Preconditions.checkElementIndex(segment, committedOnOpen);
+        return words(segment).asReadOnlyBuffer();
+    }
+
+    @Override
+    public LongBuffer write(int segment, long[] words) {
+        Preconditions.checkElementIndex(segment, segmentCount);
+        Preconditions.checkArgument(words.length * Long.BYTES == segmentBytes, "Wrong segment size");
+
+        try {
+            words(segment).put(words);
+            buffer.putInt(checksumOffset(segment), checksum(segment));
+        } catch (InternalError e) {
+            // a failed page fault of the mapping, e.g. on a full disk, the segment is not committed
+            throw new UncheckedIOException("Cannot write segment " + segment + " to " + file, new IOException(e));
+        }
+        return words(segment).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized void commit(int count) {
+        Preconditions.checkPositionIndex(count, segmentCount);
+
+        int offset = nextSlot * SLOT_BYTES;
+        buffer.putLong(offset, MAGIC);
+        buffer.putInt(offset + 8, VERSION);
+        buffer.putInt(offset + 12, segmentBytes);
+        buffer.putInt(offset + 16, count);
+        buffer.putInt(offset + SLOT_FIELDS_BYTES, headerChecksum(offset));
+        nextSlot = 1 - nextSlot;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            buffer.force();
+            lock.release();
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close the bitmap file " + file, e);
+        }
+    }
+}
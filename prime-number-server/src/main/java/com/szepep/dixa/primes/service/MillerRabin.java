@@ -0,0 +1,109 @@
+package com.szepep.dixa.primes.service;
+
+/**
+ * Deterministic Miller-Rabin primality test of 64-bit numbers.
+ * <p>
+ * The bases of Jim Sinclair are enough for every number below 2^64. The modular arithmetic uses Montgomery
+ * multiplication on top of {@link Math#multiplyHigh(long, long)}, no division and no {@link java.math.BigInteger}.
+ */
+final class MillerRabin {
+
+    private static final long[] BASES = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+
+    private static final int[] SMALL_PRIMES = {3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47};
+
+    private MillerRabin() {
+    }
+
+    /**
+     * @param n The number.
+     * @return True if the number is prime, numbers less than 2 are not primes.
+     */
+    static boolean isPrime(long n) {
+        if (n < 2) return false;
+        if ((n & 1) == 0) return n == 2;
+        for (int p : SMALL_PRIMES) {
+            if (n == p) return true;
+            if (n % p == 0) return false;
+        }
+        if (n < 53 * 53) return true;
+
+        return new Montgomery(n).isStrongProbablePrimeForAllBases();
+    }
+
+    /**
+     * Montgomery arithmetic modulo an odd n < 2^63 with R = 2^64.
+     */
+    private static final class Montgomery {
+        private final long n;
+        private final long inverse; // n^-1 mod 2^64
+        private final long one;     // R mod n
+        private final long r2;      // R^2 mod n
+
+        private Montgomery(long n) {
+            this.n = n;
+
+            long inv = n; // correct to 3 bits, every Newton step doubles it
+            for (int i = 0; i < 5; ++i) inv *= 2 - n * inv;
+            inverse = inv;
+
+            one = Long.remainderUnsigned(-n, n);
+            long r = one;
+            for (int i = 0; i < 64; ++i) {
+                r <<= 1;
+                if (Long.compareUnsigned(r, n) >= 0) r -= n;
+            }
+            r2 = r;
+        }
+
+        /**
+         * @return a * b / R mod n for a, b < n.
+         */
+        private long multiply(long a, long b) {
+            long high = Math.multiplyHigh(a, b); // a, b < 2^63, the signed high word is the unsigned one
+            long m = a * b * inverse;
+            long t = high - unsignedMultiplyHigh(m, n);
+            return t < 0 ? t + n : t;
+        }
+
+        private static long unsignedMultiplyHigh(long a, long b) {
+            return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+        }
+
+        private long toMontgomery(long a) {
+            return multiply(a, r2);
+        }
+
+        private long power(long base, long exponent) {
+            long result = one;
+            for (; exponent != 0; exponent >>>= 1) {
+                if ((exponent & 1) != 0) result = multiply(result, base);
+                base = multiply(base, base);
+            }
+            return result;
+        }
+
+        private boolean isStrongProbablePrimeForAllBases() {
+            long d = n - 1;
+            int s = Long.numberOfTrailingZeros(d);
+            d >>>= s;
+            long minusOne = n - one;
+
+            for (long a : BASES) {
+                long base = a % n;
+                if (base == 0) continue;
+
+                long x = power(toMontgomery(base), d);
+                if (x == one || x == minusOne) continue;
+
+                boolean composite = true;
+                for (int i = 1; i < s && composite; ++i) {
+                    x = multiply(x, x);
+                    composite = x != minusOne;
+                }
+                if (composite) return false;
+            }
+            return true;
+        }
+    }
+}
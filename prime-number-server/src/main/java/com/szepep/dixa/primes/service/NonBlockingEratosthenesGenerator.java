@@ -1,111 +1,236 @@
 package com.szepep.dixa.primes.service;
 
 import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.BitSet;
+import java.nio.LongBuffer;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
- * Generator using Eratosthenes sieve. Complex solution using read-write lock to lock parts of the computation.
+ * Generator using Eratosthenes sieve without locks.
+ * <p>
+ * The bitmap is made of immutable segments, see {@link SieveSegments}. A missing segment is sieved by the first thread
+ * requesting it. The computation is registered as a future keyed by the segment, any number of concurrent requests of
+ * the segment share it, {@link #sieveStepsAsync(int)} waits for it without blocking the thread. The counting queries
+ * are answered from the rank index of the segments, the same way as by {@link EratosthenesGenerator}.
+ * <p>
+ * Reports the segments and the time of sieving and waiting for the computations of other threads, see
+ * {@link SieveMetrics}.
  */
+@Component
+@Primary
+@ConditionalOnProperty(prefix = "generator", name = "type", havingValue = "non-blocking")
 @ThreadSafe
 @Slf4j
 public final class NonBlockingEratosthenesGenerator implements Generator {
 
-    private final int batchSize = 1_000;
+    private final SieveSegments segments;
 
-    private final BitSet bits = new BitSet();
-    private final ConcurrentHashMap<Integer, ReadWriteLock> locks = new ConcurrentHashMap<>();
-
-    private volatile int max = 2;
+    /**
+     * Computations of the segments which are not published yet.
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<LongBuffer>> inFlight = new ConcurrentHashMap<>();
+    private final SieveMetrics metrics = new SieveMetrics();
 
     NonBlockingEratosthenesGenerator() {
-        bits.clear();
-        bits.set(2);
-    }
-
-    private void sieve(int n) {
-        if (n <= max) return; // other thread already computed
-
-        log.trace("Entering sieve for {}", n);
-
-        // the first thread do the computation, others will wait for the response.
-        AtomicBoolean calculateNewPrimes = new AtomicBoolean(false);
-        var lock = locks.computeIfAbsent(n, k -> {
-            calculateNewPrimes.set(true);
-            var l = new ReentrantReadWriteLock();
-            l.writeLock().lock();
-            log.trace("locker for write for {}", n);
-            return l;
-        });
-
-        if (calculateNewPrimes.get()) {
-            if (n > max) {
-                sieveCriticalSection(n);
-            } else {
-                log.trace("Won the race but already computed {}", n);
-            }
-            lock.writeLock().unlock();
-            locks.remove(n);
-            log.trace("unlocked for {}", n);
-        } else {
-            if (n <= max) {
-                log.trace("don't bother, already computed {}", n);
-                return;
-            }
-            log.trace("waiting for read lock for {}", n);
-            lock.readLock().lock();
-            log.trace("read lock gained for {}", n);
-            lock.readLock().unlock();
+        this(SieveSegments.SEGMENT_COUNT);
+    }
+
+    @Autowired
+    NonBlockingEratosthenesGenerator(NonBlockingConfig config) {
+        this(SieveSegments.segmentsOf(config.getMemoryBytes()));
+    }
+
+    /**
+     * @param maxSegments The largest number of segments kept in memory, the cold segments above it are evicted.
+     */
+    NonBlockingEratosthenesGenerator(int maxSegments) {
+        segments = new SieveSegments(maxSegments);
+    }
+
+    SieveSegments segments() {
+        return segments;
+    }
+
+    private LongBuffer segment(int segment) {
+        var words = segments.get(segment);
+        if (words != null) return words;
+
+        var computation = compute(segment);
+        if (computation.isDone()) return computation.join();
+        long start = System.nanoTime();
+        try {
+            return computation.join();
+        } finally {
+            metrics.waited(start);
         }
     }
 
-    private void sieveCriticalSection(int n) {
-        log.trace("entering critical section for {}", n);
-        int nPlus1 = n + 1;
-
-        bits.clear(max + 1, nPlus1);
-        bits.flip(max + 1, nPlus1);
-        double sqrt = Math.ceil(Math.sqrt(n));
-        for (int i = 2; i < sqrt; ++i)
-            if (bits.get(i)) {
-                int start = max <= i * i
-                        ? (i * i)                           // start from the beginning
-                        : max - ((max - (i * i)) % i) + i;  // continue where we stopped
-                for (int j = start; j >= 0 && j < nPlus1; j += i)
-                    bits.set(j, false);
+    /**
+     * Returns the segment or its computation. The segment is sieved by the calling thread unless other thread is
+     * already sieving it, then the computation of the other thread is returned.
+     */
+    private CompletableFuture<LongBuffer> segmentAsync(int segment) {
+        var words = segments.get(segment);
+        return words != null ? CompletableFuture.completedFuture(words) : compute(segment);
+    }
+
+    /**
+     * Sieves the segment missing from the lookup or returns the computation of other thread.
+     */
+    private CompletableFuture<LongBuffer> compute(int segment) {
+        var computation = new CompletableFuture<LongBuffer>();
+        var running = inFlight.putIfAbsent(segment, computation);
+        if (running != null) return running;
+
+        try {
+            // other thread may have published it before the registration
+            var words = segments.peek(segment);
+            if (words == null) {
+                log.trace("Sieving segment {}", segment);
+                long start = System.nanoTime();
+                words = segments.publish(segment, SieveSegments.sieve(segment));
+                metrics.extended(start);
             }
-        max = n;
-        log.trace("exiting critical section for {}", n);
+            computation.complete(words);
+        } catch (RuntimeException | Error e) {
+            computation.completeExceptionally(e);
+        } finally {
+            inFlight.remove(segment, computation);
+        }
+        return computation;
+    }
+
+    @Override
+    public int residentLimit() {
+        return segments.residentLimit();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        segments.bindTo(registry);
+        metrics.bindTo(registry);
     }
 
     @Override
     public Stream<Integer> primesUntil(final int number) throws IllegalArgumentException {
+        return primeChunksUntil(number)
+                .flatMapToInt(IntStream::of)
+                .boxed();
+    }
+
+    @Override
+    public Stream<int[]> primeChunksUntil(final int number) throws IllegalArgumentException {
         Preconditions.checkArgument(number >= 0,
                 "The number must be zero or positive");
         Preconditions.checkArgument(number <= Integer.MAX_VALUE - 1,
                 "The number must be less than " + Integer.MAX_VALUE);
+        return primeChunksFrom(0, number);
+    }
+
+    /**
+     * One chunk per segment from the segment of the lower bound.
+     */
+    @Override
+    public Stream<int[]> primeChunksFrom(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+        Preconditions.checkArgument(number <= Integer.MAX_VALUE - 1,
+                "The number must be less than " + Integer.MAX_VALUE);
+
+        int first = SieveSegments.segmentOf(from);
+        int last = SieveSegments.segmentOf(number);
+        return IntStream.rangeClosed(first, last)
+                .mapToObj(s -> {
+                    var primes = Sieve.primesOf(segment(s),
+                            s == last ? SieveSegments.bitOf(number) + 1 : SieveSegments.SEGMENT_BITS,
+                            (long) s * SieveSegments.SEGMENT_BITS, false);
+                    return s == first ? Chunks.tailFrom(primes, from) : primes;
+                })
+                .filter(chunk -> chunk.length > 0);
+    }
+
+    /**
+     * One step per segment, a step completes when its segment is published by the calling or other thread.
+     */
+    @Override
+    public Stream<CompletableFuture<Integer>> sieveStepsAsync(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0,
+                "The number must be zero or positive");
+        Preconditions.checkArgument(number <= Integer.MAX_VALUE - 1,
+                "The number must be less than " + Integer.MAX_VALUE);
+
+        return IntStream.rangeClosed(0, SieveSegments.segmentOf(number))
+                .mapToObj(s -> segmentAsync(s).thenApply(words -> Math.min(number, SieveSegments.lastNumberOf(s))));
+    }
+
+    /**
+     * One step per segment.
+     */
+    @Override
+    public IntStream sieveSteps(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0,
+                "The number must be zero or positive");
+        return sieveSteps(0, number);
+    }
+
+    /**
+     * One step per segment from the segment of the lower bound.
+     */
+    @Override
+    public IntStream sieveSteps(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+        Preconditions.checkArgument(number <= Integer.MAX_VALUE - 1,
+                "The number must be less than " + Integer.MAX_VALUE);
+
+        return IntStream.rangeClosed(SieveSegments.segmentOf(from), SieveSegments.segmentOf(number))
+                .map(s -> {
+                    segment(s);
+                    return Math.min(number, SieveSegments.lastNumberOf(s));
+                });
+    }
+
+    @Override
+    public int countUntil(final int number) throws IllegalArgumentException {
+        return segments.countUntil(number, this::segment);
+    }
+
+    @Override
+    public int nth(final int n) throws IllegalArgumentException {
+        return segments.nth(n, this::segment);
+    }
+
+    @Override
+    public OptionalInt lastPrimeUntil(final int number) throws IllegalArgumentException {
+        return segments.lastPrimeUntil(number, this::segment);
+    }
+
+    @Override
+    public boolean isPrime(final long number) {
+        return segments.isPrime(number);
+    }
 
-        return IntStream.range(0, number / batchSize + 1)
-                .boxed()
-                .flatMap(i -> {
-                            int from = i * batchSize;
-                            int to = (i + 1) * batchSize;
-
-                            // fetching the volatile max ensures fetching of bits
-                            if (to > max) sieve(to);
-                            return IntStream.range(from, to)
-                                    .filter(bits::get)
-                                    .boxed();
-                        }
-                )
-                .takeWhile(p -> p <= number);
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "generator.non-blocking")
+    @Data
+    static class NonBlockingConfig {
+        /**
+         * Memory bound of the sieved segments, the cold segments above it are evicted. Not bounded if not positive.
+         */
+        private long memoryBytes = 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,234 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Extends the sieve in the background ahead of the demand, so that the first request above the sieved range does not
+ * pay the whole extension.
+ * <p>
+ * The requested numbers are counted in power of two buckets, the sieve is extended until the configured quantile of
+ * them but at least until the warm-up limit and at most until the memory budget and the memory bound of the
+ * generator, the pre-sieved segments are not evicted. One step is sieved at a time on a low priority thread, while a
+ * gRPC call is in progress only a smaller busy step, the live requests are slowed down little but the warm-up still
+ * completes under steady traffic. A step only sieves the range after the previous one by
+ * {@link Generator#sieveSteps(int, int)}, it does not count or collect the primes and does not look up the pre-sieved
+ * segments again. The gRPC calls are counted by this interceptor.
+ */
+@Slf4j
+@Component
+@ThreadSafe
+public class PreSieving implements ServerInterceptor, MeterBinder {
+
+    private static final int BUCKETS = Integer.SIZE;
+
+    private final Generator generator;
+    private final PreSievingConfig config;
+
+    /**
+     * Requests by the bit length of the requested number, the bucket b holds the numbers less than 2^b.
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final AtomicInteger activeCalls = new AtomicInteger();
+    private final CompletableFuture<Void> warmedUp = new CompletableFuture<>();
+
+    private volatile int sieved = -1;
+    private ScheduledExecutorService executor;
+
+    PreSieving(Generator generator, PreSievingConfig config) {
+        Preconditions.checkArgument(config.getQuantile() > 0 && config.getQuantile() <= 1,
+                "The quantile must be in (0, 1]");
+        Preconditions.checkArgument(config.getStep() > 0, "The step must be positive");
+        Preconditions.checkArgument(config.getBusyStep() > 0, "The busy step must be positive");
+        this.generator = generator;
+        this.config = config;
+    }
+
+    @PostConstruct
+    void start() {
+        if (!config.isEnabled()) {
+            warmedUp.complete(null);
+            return;
+        }
+        log.info("Pre-sieving until {} numbers, warm-up until {}", limit(), warmUp());
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "pre-sieving");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        var interval = config.getInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::step, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * Records a requested number.
+     */
+    void observe(int number) {
+        if (number >= 0) histogram.incrementAndGet(BUCKETS - Integer.numberOfLeadingZeros(number));
+    }
+
+    /**
+     * Completed once the sieve reaches the warm-up limit.
+     */
+    CompletableFuture<Void> warmedUp() {
+        return warmedUp;
+    }
+
+    /**
+     * @return The number until the sieve is pre-computed, -1 if nothing is pre-computed yet.
+     */
+    int sieved() {
+        return sieved;
+    }
+
+    /**
+     * The largest number kept by the memory budget, one bit per number, and by the memory bound of the generator.
+     */
+    int limit() {
+        return (int) Math.min(generator.residentLimit(), config.getMemoryBytes() * Byte.SIZE - 1);
+    }
+
+    private int warmUp() {
+        return Math.min(config.getWarmUp(), limit());
+    }
+
+    /**
+     * @return Numbers until the sieve should be pre-computed.
+     */
+    @VisibleForTesting
+    int target() {
+        long total = 0;
+        var counts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; ++b) total += counts[b] = histogram.get(b);
+
+        int demand = 0;
+        long needed = (long) Math.ceil(total * config.getQuantile());
+        long seen = 0;
+        for (int b = 0; b < BUCKETS && needed > 0; ++b) {
+            seen += counts[b];
+            if (seen >= needed) {
+                demand = (int) Math.min(Integer.MAX_VALUE, (1L << b) - 1); // the largest number of the bucket
+                break;
+            }
+        }
+        return Math.min(Math.max(demand, warmUp()), limit());
+    }
+
+    /**
+     * Sieves one step towards the target, a busy step while a call is in progress.
+     */
+    @VisibleForTesting
+    void step() {
+        try {
+            int target = target();
+            if (sieved < target) {
+                int step = activeCalls.get() == 0 ? config.getStep() : config.getBusyStep();
+                int next = (int) Math.min(target, (long) sieved + step);
+                // only the new range, the pre-sieved segments would count as hits and look hot to the eviction
+                generator.sieveSteps(sieved + 1, next).forEach(ignored -> { /* sieves only, no primes collected */ });
+                sieved = next;
+                log.debug("Pre-sieved until {}", next);
+            }
+            if (sieved >= warmUp() && warmedUp.complete(null)) log.info("Warm-up finished until {}", sieved);
+        } catch (RuntimeException e) {
+            log.error("Pre-sieving failed", e);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("primes.presieving.sieved", this, PreSieving::sieved)
+                .description("The number until the sieve is pre-computed")
+                .register(registry);
+        Gauge.builder("primes.presieving.target", this, PreSieving::target)
+                .description("The number until the sieve should be pre-computed")
+                .register(registry);
+    }
+
+    @Override
+    public <Q, R> ServerCall.Listener<Q> interceptCall(
+            ServerCall<Q, R> call, Metadata headers, ServerCallHandler<Q, R> next) {
+        activeCalls.incrementAndGet();
+        ServerCall.Listener<Q> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (RuntimeException e) {
+            activeCalls.decrementAndGet();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onComplete() {
+                activeCalls.decrementAndGet();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                activeCalls.decrementAndGet();
+                super.onCancel();
+            }
+        };
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "generator.pre-sieving")
+    @Data
+    static class PreSievingConfig {
+        private boolean enabled = true;
+        /**
+         * The sieve is extended at least until this number, readiness reports serving once it is reached.
+         */
+        private int warmUp = 0;
+        /**
+         * The sieve is extended until this quantile of the requested numbers.
+         */
+        private double quantile = 0.99;
+        /**
+         * Memory budget of the pre-sieved bitmap, one bit per number. The memory bound of the generator caps it too.
+         */
+        private long memoryBytes = 64L * 1024 * 1024;
+        /**
+         * Numbers sieved in one step, the step is not interrupted by live requests.
+         */
+        private int step = 1 << 22;
+        /**
+         * Numbers sieved in one step while a gRPC call is in progress.
+         */
+        private int busyStep = 1 << 18;
+        /**
+         * Pause between the steps.
+         */
+        private Duration interval = Duration.ofMillis(10);
+    }
+}
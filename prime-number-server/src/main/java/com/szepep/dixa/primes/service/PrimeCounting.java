@@ -0,0 +1,27 @@
+package com.szepep.dixa.primes.service;
+
+/**
+ * Estimates of the prime counting function.
+ */
+final class PrimeCounting {
+
+    /**
+     * Number of primes in the int range.
+     */
+    static final int PRIMES_IN_INT_RANGE = 105_097_565;
+
+    private PrimeCounting() {
+    }
+
+    /**
+     * Upper bound of the nth prime, p(n) < n (ln n + ln ln n) for n >= 6 by Rosser's theorem.
+     *
+     * @param n Index of the prime, the first prime is 2.
+     * @return Upper bound of the nth prime, not less than the nth prime.
+     */
+    static long nthPrimeUpperBound(int n) {
+        if (n < 6) return 13;
+        double ln = Math.log(n);
+        return (long) Math.ceil(n * (ln + Math.log(ln)));
+    }
+}
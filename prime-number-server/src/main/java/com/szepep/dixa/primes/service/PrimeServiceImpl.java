@@ -1,28 +1,88 @@
 package com.szepep.dixa.primes.service;
 
+import com.google.common.base.Preconditions;
+import com.szepep.dixa.proto.Chunk;
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.CountResponse;
+import com.szepep.dixa.proto.DeltaVarint;
+import com.szepep.dixa.proto.Encoding;
+import com.szepep.dixa.proto.LastPrimeResponse;
+import com.szepep.dixa.proto.LongChunk;
+import com.szepep.dixa.proto.NthRequest;
+import com.szepep.dixa.proto.PrimalityRequest;
+import com.szepep.dixa.proto.PrimalityResponse;
+import com.szepep.dixa.proto.RangeRequest;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
 import com.szepep.dixa.proto.Request;
 import com.szepep.dixa.proto.Response;
+import io.grpc.Context;
+import io.grpc.Contexts;
 import io.grpc.Status;
 import io.grpc.StatusException;
-import lombok.AllArgsConstructor;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import javax.annotation.PreDestroy;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 @Slf4j
 @Service
-@AllArgsConstructor
 public class PrimeServiceImpl extends ReactorServiceGrpc.ServiceImplBase {
 
+    /**
+     * Number of primes in one {@link Chunk} message.
+     */
+    static final int CHUNK_SIZE = 8192;
+
     private final Generator generator;
+    private final PreSieving preSieving;
+    private final MeterRegistry registry;
+    private final PrimalityConfig primality;
+
+    /**
+     * Tests the ranges of the large primality batches, a bounded pool not shared with the calls.
+     */
+    private final ForkJoinPool primalityPool;
+
+    PrimeServiceImpl(Generator generator, PreSieving preSieving, MeterRegistry registry, PrimalityConfig primality) {
+        Preconditions.checkArgument(primality.getParallelThreshold() > 0, "The parallel threshold must be positive");
+        this.generator = generator;
+        this.preSieving = preSieving;
+        this.registry = registry;
+        this.primality = primality;
+
+        int parallelism = primality.getParallelism();
+        primalityPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(),
+                pool -> {
+                    var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("primality-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }, null, false);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        primalityPool.shutdownNow();
+    }
 
     @Override
     public Flux<Response> get(Mono<Request> request) {
+        var context = Context.current();
+        var emission = new Emission("get");
         AtomicReference<String> cid = new AtomicReference<>();
         return request
                 .doOnEach(s -> Optional.ofNullable(s.get()).ifPresent(r -> {
@@ -31,14 +91,263 @@ public class PrimeServiceImpl extends ReactorServiceGrpc.ServiceImplBase {
                         })
                 )
                 .map(Request::getNumber)
-                .map(generator::primesUntil)
+                .doOnNext(preSieving::observe)
+                .map(generator::primeChunksUntil)
                 .flatMapMany(Flux::fromStream)
-                .map(p -> Response.newBuilder().setPrime(p).build())
-                .onErrorMap(e -> {
-                    Status status = Status.INTERNAL;
-                    if (e instanceof IllegalArgumentException) status = Status.INVALID_ARGUMENT;
-                    return new StatusException(status.withDescription(e.getMessage()).withCause(e));
+                .doOnNext(chunk -> checkNotCancelled(context))
+                .doOnNext(chunk -> emission.add(chunk.length))
+                // chunks are large, prefetching one keeps the sieving close to the consumer
+                .flatMapIterable(PrimeServiceImpl::responses, 1)
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnComplete(() -> log.info("[{}] Request processed", cid.get()))
+                .doFinally(signal -> emission.record());
+    }
+
+    @Override
+    public Flux<Chunk> getChunks(Mono<ChunkRequest> request) {
+        var context = Context.current();
+        var emission = new Emission("getChunks");
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnEach(s -> Optional.ofNullable(s.get()).ifPresent(r -> {
+                            cid.set(r.getCorrelationId());
+                            log.info("[{}] Request received", r.getCorrelationId());
+                        })
+                )
+                .flatMapMany(r -> {
+                    preSieving.observe(r.getNumber());
+                    var chunks = Chunks.resize(generator.primeChunksFrom(r.getFrom(), r.getNumber()), CHUNK_SIZE);
+                    return Flux.fromStream(chunks)
+                            .doOnNext(primes -> emission.add(primes.length))
+                            .map(primes -> chunk(primes, r.getEncoding()));
+                })
+                .doOnNext(chunk -> checkNotCancelled(context))
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnComplete(() -> log.info("[{}] Request processed", cid.get()))
+                .doFinally(signal -> emission.record());
+    }
+
+    @Override
+    public Flux<LongChunk> getRange(Mono<RangeRequest> request) {
+        var context = Context.current();
+        var emission = new Emission("getRange");
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnEach(s -> Optional.ofNullable(s.get()).ifPresent(r -> {
+                            cid.set(r.getCorrelationId());
+                            log.info("[{}] Request received", r.getCorrelationId());
+                        })
+                )
+                .map(r -> generator.primeChunksBetween(r.getFrom(), r.getTo()))
+                .flatMapMany(Flux::fromStream)
+                .doOnNext(chunk -> checkNotCancelled(context))
+                .doOnNext(chunk -> emission.add(chunk.length))
+                .map(PrimeServiceImpl::longChunk)
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnComplete(() -> log.info("[{}] Request processed", cid.get()))
+                .doFinally(signal -> emission.record());
+    }
+
+    @Override
+    public Mono<CountResponse> getCount(Mono<Request> request) {
+        var context = Context.current();
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnNext(r -> {
+                    cid.set(r.getCorrelationId());
+                    log.info("[{}] Request received", r.getCorrelationId());
+                })
+                .doOnNext(r -> preSieving.observe(r.getNumber()))
+                .delayUntil(r -> sieve(r.getNumber(), context))
+                .map(r -> CountResponse.newBuilder().setCount(generator.countUntil(r.getNumber())).build())
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnSuccess(r -> log.info("[{}] Request processed", cid.get()));
+    }
+
+    @Override
+    public Mono<Response> getNth(Mono<NthRequest> request) {
+        var context = Context.current();
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnNext(r -> {
+                    cid.set(r.getCorrelationId());
+                    log.info("[{}] Request received", r.getCorrelationId());
+                })
+                .delayUntil(r -> r.getN() > 0 && r.getN() <= PrimeCounting.PRIMES_IN_INT_RANGE
+                        ? sieve((int) Math.min(PrimeCounting.nthPrimeUpperBound(r.getN()), Integer.MAX_VALUE), context)
+                        : Mono.empty())
+                .map(r -> Response.newBuilder().setPrime(generator.nth(r.getN())).build())
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnSuccess(r -> log.info("[{}] Request processed", cid.get()));
+    }
+
+    @Override
+    public Mono<LastPrimeResponse> getLastPrime(Mono<Request> request) {
+        var context = Context.current();
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnNext(r -> {
+                    cid.set(r.getCorrelationId());
+                    log.info("[{}] Request received", r.getCorrelationId());
+                })
+                .doOnNext(r -> preSieving.observe(r.getNumber()))
+                .delayUntil(r -> sieve(r.getNumber(), context))
+                .map(r -> {
+                    var builder = LastPrimeResponse.newBuilder();
+                    generator.lastPrimeUntil(r.getNumber()).ifPresent(builder::setPrime);
+                    return builder.build();
+                })
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnSuccess(r -> log.info("[{}] Request processed", cid.get()));
+    }
+
+    /**
+     * A batch below the parallel threshold is tested sequentially on the thread of the call, a test reads one bit of
+     * the sieve or runs Miller-Rabin below a microsecond. A larger batch is split into one index range per thread of
+     * the primality pool, the results are written in the order of the request.
+     */
+    @Override
+    public Mono<PrimalityResponse> isPrime(Mono<PrimalityRequest> request) {
+        AtomicReference<String> cid = new AtomicReference<>();
+        return request
+                .doOnNext(r -> {
+                    cid.set(r.getCorrelationId());
+                    log.info("[{}] Request received, {} numbers", r.getCorrelationId(), r.getNumbersCount());
+                })
+                .flatMap(this::primality)
+                .map(primes -> {
+                    var builder = PrimalityResponse.newBuilder();
+                    for (boolean prime : primes) builder.addPrime(prime);
+                    return builder.build();
                 })
-                .doOnComplete(() -> log.info("[{}] Request processed", cid.get()));
+                .onErrorMap(PrimeServiceImpl::toStatusException)
+                .doOnSuccess(r -> log.info("[{}] Request processed", cid.get()));
+    }
+
+    private Mono<boolean[]> primality(PrimalityRequest request) {
+        int count = request.getNumbersCount();
+        var primes = new boolean[count];
+        if (count < primality.getParallelThreshold()) {
+            test(request, primes, 0, count);
+            return Mono.just(primes);
+        }
+
+        int ranges = primalityPool.getParallelism();
+        var tests = IntStream.range(0, ranges)
+                .mapToObj(i -> CompletableFuture.runAsync(() -> test(request, primes,
+                        (int) ((long) count * i / ranges), (int) ((long) count * (i + 1) / ranges)), primalityPool))
+                .toArray(CompletableFuture[]::new);
+        // the completion of all tests publishes the written results
+        return Mono.fromFuture(CompletableFuture.allOf(tests)).thenReturn(primes);
+    }
+
+    /**
+     * Tests the numbers of the index range, from inclusive to exclusive.
+     */
+    private void test(PrimalityRequest request, boolean[] primes, int from, int to) {
+        for (int i = from; i < to; ++i) primes[i] = generator.isPrime(request.getNumbers(i));
+    }
+
+    /**
+     * Sieves until the number step by step, the sieving stops between the steps once the call is cancelled. A step
+     * computed by other request is awaited without blocking the thread.
+     */
+    private Mono<Void> sieve(int number, Context context) {
+        return Flux.fromStream(() -> generator.sieveStepsAsync(number))
+                .concatMap(Mono::fromFuture, 1)
+                .doOnNext(step -> checkNotCancelled(context))
+                .then();
+    }
+
+    /**
+     * The cancellation of the call or the expiry of its deadline is visible in the gRPC context right away, the work is
+     * stopped between two elements.
+     */
+    private static void checkNotCancelled(Context context) {
+        var status = Contexts.statusFromCancelled(context);
+        if (status != null) throw status.asRuntimeException();
+    }
+
+    private static Chunk chunk(int[] primes, Encoding encoding) {
+        switch (encoding) {
+            case PACKED:
+                var builder = Chunk.newBuilder();
+                for (int p : primes) builder.addPrimes(p);
+                return builder.build();
+            case DELTA_VARINT:
+                return Chunk.newBuilder().setDeltas(DeltaVarint.encode(primes)).build();
+            default:
+                throw new IllegalArgumentException("Unknown encoding " + encoding);
+        }
+    }
+
+    private static LongChunk longChunk(long[] primes) {
+        var builder = LongChunk.newBuilder();
+        for (long p : primes) builder.addPrimes(p);
+        return builder.build();
+    }
+
+    /**
+     * Responses of a chunk, built lazily while the chunk is emitted.
+     */
+    private static Iterable<Response> responses(int[] chunk) {
+        return () -> IntStream.of(chunk)
+                .mapToObj(p -> Response.newBuilder().setPrime(p).build())
+                .iterator();
+    }
+
+    /**
+     * Primes emitted by one streaming call, recorded once the call terminates.
+     */
+    private final class Emission {
+        private final String method;
+        private final long start = System.nanoTime();
+        private final AtomicLong primes = new AtomicLong();
+
+        Emission(String method) {
+            this.method = method;
+        }
+
+        void add(int count) {
+            primes.addAndGet(count);
+        }
+
+        void record() {
+            long count = primes.get();
+            long elapsed = System.nanoTime() - start;
+            DistributionSummary.builder("primes.emitted")
+                    .description("Primes emitted by one call")
+                    .tag("method", method)
+                    .register(registry)
+                    .record(count);
+            if (count > 0 && elapsed > 0) {
+                DistributionSummary.builder("primes.emission.rate")
+                        .description("Primes emitted per second by one call")
+                        .tag("method", method)
+                        .register(registry)
+                        .record(count * 1e9 / elapsed);
+            }
+        }
+    }
+
+    private static StatusException toStatusException(Throwable e) {
+        if (e instanceof StatusRuntimeException) return new StatusException(((StatusRuntimeException) e).getStatus());
+        Status status = Status.INTERNAL;
+        if (e instanceof IllegalArgumentException) status = Status.INVALID_ARGUMENT;
+        return new StatusException(status.withDescription(e.getMessage()).withCause(e));
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "primality")
+    @Data
+    static class PrimalityConfig {
+        /**
+         * Batches of at least this many numbers are split into index ranges tested in parallel.
+         */
+        private int parallelThreshold = 16_384;
+        /**
+         * Threads testing the ranges, the number of processors if not positive.
+         */
+        private int parallelism = 0;
     }
 }
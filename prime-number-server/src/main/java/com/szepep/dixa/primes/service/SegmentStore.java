@@ -0,0 +1,45 @@
+package com.szepep.dixa.primes.service;
+
+import java.io.Closeable;
+import java.nio.LongBuffer;
+
+/**
+ * Storage of the sieved segments of {@link SegmentedEratosthenesGenerator}.
+ * <p>
+ * Segments are written once and never modified. A written segment becomes durable only when it is committed, the
+ * segments are committed in ascending order.
+ */
+interface SegmentStore extends Closeable {
+
+    /**
+     * @return Number of valid segments committed before the store was opened.
+     */
+    int committed();
+
+    /**
+     * Reads a segment committed before the store was opened.
+     *
+     * @param segment Index of the segment, less than {@link #committed()}.
+     * @return Words of the segment.
+     */
+    LongBuffer read(int segment);
+
+    /**
+     * Stores a sieved segment.
+     *
+     * @param segment Index of the segment.
+     * @param words   The sieved bits of the segment.
+     * @return Words of the stored segment, the buffer must not be modified.
+     */
+    LongBuffer write(int segment, long[] words);
+
+    /**
+     * Marks the first count segments as complete.
+     *
+     * @param count Number of complete segments.
+     */
+    void commit(int count);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,501 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Generator using a segmented Eratosthenes sieve. Only odd numbers are stored, one bit per number.
+ * <p>
+ * The bitmap is split into fixed size segments which fit into the CPU cache. Every segment is sieved independently by
+ * the {@link Sieve#BASE_PRIMES}. Segments are published in order, a published segment is never modified again.
+ * <p>
+ * In sequential mode the segments are sieved by the requesting thread. In parallel mode a window of segments ahead of
+ * the consumer is sieved on a {@link ForkJoinPool}, the requesting thread streams the first segments while the later
+ * ones are still being computed. A failed computation, e.g. a failed write of the store, fails the requests waiting for
+ * it, the next request sieves the segment again.
+ * <p>
+ * A range above the published segments, e.g. a partition of a scattered request, is sieved alone by the requesting
+ * thread, its segments are neither stored nor published.
+ * <p>
+ * The segments are kept by a {@link SegmentStore}, on the heap or in a memory mapped file which is reopened after
+ * restart without sieving again.
+ * <p>
+ * The number of primes before every published segment is kept as a rank index, the counting queries popcount at most
+ * one segment.
+ * <p>
+ * Reports the published segments and the time of sieving and waiting for the lock and the computations, see
+ * {@link SieveMetrics}.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(prefix = "generator", name = "type", havingValue = "segmented")
+@ThreadSafe
+public final class SegmentedEratosthenesGenerator implements Generator {
+
+    static final int DEFAULT_SEGMENT_BYTES = 32 * 1024;
+
+    private static final int MIN_SEGMENT_BYTES = 1024;
+    private static final int MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The largest number of segments sieved by one call in sequential mode, the sieving stops between the calls when
+     * the request is abandoned.
+     */
+    private static final int MAX_BATCH_SEGMENTS = 64;
+
+    /**
+     * Number of stored bits, the last bit represents {@link Integer#MAX_VALUE}.
+     */
+    private static final int BITS = (Integer.MAX_VALUE >>> 1) + 1;
+
+    private final int segmentBits;
+    private final LongBuffer[] segments;
+    private final SegmentStore store;
+
+    /**
+     * Rank index, rank[s] is the number of odd primes in the segments before s. Published by the volatile sieved, the
+     * entries until sieved are valid.
+     */
+    private final int[] rank;
+
+    /**
+     * Runs the segment computations, the calling thread in sequential mode.
+     */
+    private final Executor executor;
+    private final boolean parallel;
+
+    /**
+     * Number of segments kept scheduled from the required one in parallel mode.
+     */
+    private final int lookahead;
+
+    /**
+     * Computations of segments which are scheduled but not published yet.
+     */
+    @GuardedBy("this")
+    private final Map<Integer, CompletableFuture<LongBuffer>> inFlight = new HashMap<>();
+
+    /**
+     * Number of scheduled segments, published or in flight.
+     */
+    @GuardedBy("this")
+    private int scheduled = 0;
+
+    /**
+     * Number of published segments. Segments with lower index are complete and never change.
+     */
+    private volatile int sieved = 0;
+
+    private final SieveMetrics metrics = new SieveMetrics();
+
+    SegmentedEratosthenesGenerator() {
+        this(DEFAULT_SEGMENT_BYTES);
+    }
+
+    SegmentedEratosthenesGenerator(int segmentBytes) {
+        this(segmentBytes, 1);
+    }
+
+    SegmentedEratosthenesGenerator(int segmentBytes, int parallelism) {
+        this(segmentBytes, parallelism, new HeapSegmentStore());
+    }
+
+    @Autowired
+    SegmentedEratosthenesGenerator(SegmentedConfig config) {
+        this(config.getSegmentBytes(), config.getParallelism(), store(config));
+    }
+
+    SegmentedEratosthenesGenerator(int segmentBytes, int parallelism, SegmentStore store) {
+        Preconditions.checkArgument(Integer.bitCount(segmentBytes) == 1,
+                "The segment size must be a power of two");
+        Preconditions.checkArgument(segmentBytes >= MIN_SEGMENT_BYTES && segmentBytes <= MAX_SEGMENT_BYTES,
+                "The segment size must be between " + MIN_SEGMENT_BYTES + " and " + MAX_SEGMENT_BYTES + " bytes");
+        Preconditions.checkArgument(parallelism > 0, "The parallelism must be positive");
+
+        segmentBits = segmentBytes * Byte.SIZE;
+        segments = new LongBuffer[BITS / segmentBits];
+        rank = new int[segments.length + 1];
+
+        this.store = store;
+        for (int s = 0; s < store.committed(); ++s) {
+            segments[s] = store.read(s);
+            rank[s + 1] = rank[s] + Sieve.count(segments[s], segmentBits);
+        }
+        sieved = scheduled = store.committed();
+
+        parallel = parallelism > 1;
+        lookahead = 4 * parallelism;
+        executor = parallel ? new ForkJoinPool(parallelism) : Runnable::run;
+    }
+
+    private static SegmentStore store(SegmentedConfig config) {
+        switch (config.getStorage()) {
+            case HEAP:
+                return new HeapSegmentStore();
+            case MAPPED:
+                int segmentCount = BITS / (config.getSegmentBytes() * Byte.SIZE);
+                return MappedSegmentStore.open(config.getFile(), config.getSegmentBytes(), segmentCount);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + config.getStorage());
+        }
+    }
+
+    private int segmentOf(int number) {
+        return (number >>> 1) / segmentBits;
+    }
+
+    /**
+     * Returns the segment, schedules the missing segments if the segment is not sieved yet.
+     *
+     * @param segment The segment the caller needs.
+     * @param last    The last segment the caller will need.
+     */
+    private LongBuffer segment(int segment, int last) {
+        // the volatile sieved acts as memory barrier, published segments are visible to current thread.
+        if (segment < sieved) return segments[segment];
+
+        var computation = schedule(segment, last, System.nanoTime());
+        if (computation.isDone()) return computation.join();
+        long start = System.nanoTime();
+        try {
+            return computation.join();
+        } finally {
+            metrics.waited(start);
+        }
+    }
+
+    /**
+     * Returns the segment of a range above the published segments, a missing segment is sieved alone and not stored.
+     */
+    private LongBuffer windowSegment(int segment) {
+        // the volatile sieved acts as memory barrier, published segments are visible to current thread.
+        return segment < sieved ? segments[segment] : LongBuffer.wrap(sieveSegment(segment));
+    }
+
+    /**
+     * Returns the last segment once all segments until it are published. In parallel mode the last segment can be
+     * computed before the previous ones, the rank index is valid only until the published segments.
+     */
+    private LongBuffer sieveUntil(int last) {
+        for (int s = sieved; s <= last; ++s) segment(s, last);
+        return segments[last];
+    }
+
+    /**
+     * Schedules segments until the required one.
+     * <p>
+     * In sequential mode the number of sieved segments at most doubles with each call, by at most
+     * {@link #MAX_BATCH_SEGMENTS}, and never goes beyond the last segment of the request. A request needs few calls and
+     * the first segments are returned quickly. In parallel mode a window of segments ahead of the required one is kept
+     * scheduled in ascending order. The work is driven by the consumer of the segments, an abandoned request stops
+     * scheduling new segments.
+     *
+     * @param segment   The segment the caller needs.
+     * @param last      The last segment the caller will need.
+     * @param requested Time of requesting the lock.
+     * @return The computation of the required segment, or the failed computation of a segment before it.
+     */
+    private synchronized CompletableFuture<LongBuffer> schedule(int segment, int last, long requested) {
+        metrics.waited(requested);
+        if (segment < sieved) return CompletableFuture.completedFuture(segments[segment]);
+        var pending = inFlight.get(segment);
+        if (pending != null && pending.isCompletedExceptionally()) failed(segment, pending); // before its handler
+
+        int from = scheduled;
+        int to = parallel
+                ? Math.min(last + 1, segment + lookahead)
+                : Math.min(last + 1, Math.max(segment + 1, Math.min(2 * from, from + MAX_BATCH_SEGMENTS)));
+        if (to <= from) return inFlight.get(segment); // other thread already scheduled the window
+        scheduled = to;
+        CompletableFuture<LongBuffer> required = null;
+        for (int s = from; s < to; ++s) {
+            int current = s;
+            var computation = CompletableFuture
+                    .supplyAsync(() -> {
+                        long start = System.nanoTime();
+                        var words = store.write(current, sieveSegment(current));
+                        metrics.extended(start);
+                        return words;
+                    }, executor)
+                    .thenApply(words -> publish(current, words));
+            if (current >= sieved) inFlight.put(current, computation); // not published by the calling thread
+            computation.whenComplete((words, e) -> {
+                if (e != null) failed(current, computation);
+            });
+            if (current == segment) required = computation;
+            // sequential mode, the rest is scheduled again, the caller gets the failure of the earlier segment
+            if (computation.isCompletedExceptionally()) return computation;
+        }
+        return required != null ? required : inFlight.get(segment);
+    }
+
+    /**
+     * Forgets the failed computation, the segment and the ones after it are scheduled again by the next request. The
+     * callers waiting for the failed computation get its exception.
+     */
+    private synchronized void failed(int segment, CompletableFuture<LongBuffer> computation) {
+        if (inFlight.remove(segment, computation)) scheduled = Math.min(scheduled, segment);
+    }
+
+    /**
+     * Stores the segment and publishes all contiguous segments computed so far.
+     */
+    private synchronized LongBuffer publish(int segment, LongBuffer words) {
+        segments[segment] = words;
+
+        int s = sieved;
+        while (s < scheduled && segments[s] != null) {
+            rank[s + 1] = rank[s] + Sieve.count(segments[s], segmentBits);
+            inFlight.remove(s++);
+        }
+        if (s > sieved) store.commit(s);
+        sieved = s;
+        return words;
+    }
+
+    private long[] sieveSegment(int segment) {
+        var words = new long[segmentBits / Long.SIZE];
+        Arrays.fill(words, -1L);
+
+        Sieve.crossOff(words, firstNumberOf(segment), segmentBits, true, Sieve.BASE_PRIMES);
+        if (segment == 0) words[0] &= ~1L;          // 1 is not a prime
+        return words;
+    }
+
+    /**
+     * Collects the primes of a segment. The only even prime 2 leads the first segment.
+     */
+    private int[] primesOf(int segment, LongBuffer words) {
+        var primes = Sieve.primesOf(words, segmentBits, firstNumberOf(segment), true);
+        if (segment != 0) return primes;
+
+        var withTwo = new int[primes.length + 1];
+        withTwo[0] = 2;
+        System.arraycopy(primes, 0, withTwo, 1, primes.length);
+        return withTwo;
+    }
+
+    /**
+     * The first odd number of the segment.
+     */
+    private long firstNumberOf(int segment) {
+        return 2L * segment * segmentBits + 1;
+    }
+
+    /**
+     * Index of the bit of the largest odd number not greater than the number relative to the segment, -1 if the
+     * number is the first even number of the segment.
+     */
+    private int bitOf(int number, int segment) {
+        return ((number - 1) >>> 1) - segment * segmentBits;
+    }
+
+    @VisibleForTesting
+    int sievedSegments() {
+        return sieved;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("primes.sieve.max", this, g -> Math.min(Integer.MAX_VALUE, 2L * g.sieved * g.segmentBits - 1))
+                .description("The largest number sieved without gap")
+                .register(registry);
+        Gauge.builder("primes.sieve.memory", this, g -> (double) g.sieved * g.segmentBits / Byte.SIZE)
+                .description("Memory of the published segments")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        metrics.bindTo(registry);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor instanceof ForkJoinPool) ((ForkJoinPool) executor).shutdownNow();
+        store.close();
+    }
+
+    @Override
+    public Stream<Integer> primesUntil(final int number) throws IllegalArgumentException {
+        return primeChunksUntil(number)
+                .flatMapToInt(IntStream::of)
+                .boxed();
+    }
+
+    /**
+     * One chunk per segment, the chunk of the last segment is cut at the number.
+     */
+    @Override
+    public Stream<int[]> primeChunksUntil(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        return primeChunksFrom(0, number);
+    }
+
+    /**
+     * One chunk per segment from the segment of the lower bound, the chunks of the first and the last segments are cut
+     * at the bounds. A lower bound above the published segments sieves only the segments of the range.
+     */
+    @Override
+    public Stream<int[]> primeChunksFrom(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+        if (number < 2) return Stream.empty();
+
+        int first = segmentOf(from);
+        int last = segmentOf(number);
+        boolean window = first > sieved;
+        return IntStream.rangeClosed(first, last)
+                .mapToObj(s -> {
+                    int[] primes = primesOf(s, window ? windowSegment(s) : segment(s, last));
+                    if (s == last) primes = headUntil(primes, number);
+                    return s == first ? Chunks.tailFrom(primes, from) : primes;
+                })
+                .filter(chunk -> chunk.length > 0);
+    }
+
+    /**
+     * One step per segment, in parallel mode the segments ahead of the step are computed in parallel.
+     */
+    @Override
+    public IntStream sieveSteps(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        return sieveSteps(0, number);
+    }
+
+    /**
+     * One step per segment from the segment of the lower bound, the missing segments before it are sieved by the
+     * first step.
+     */
+    @Override
+    public IntStream sieveSteps(final int from, final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(from <= number, "The lower bound must be less than or equal to the number");
+
+        int last = segmentOf(number);
+        return IntStream.rangeClosed(segmentOf(from), last)
+                .map(s -> {
+                    segment(s, last);
+                    return (int) Math.min(number, 2L * (s + 1) * segmentBits - 1);
+                });
+    }
+
+    @Override
+    public int countUntil(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        if (number < 2) return 0;
+
+        int last = segmentOf(number);
+        var words = sieveUntil(last);
+        return 1 + rank[last] + Sieve.count(words, bitOf(number, last) + 1);
+    }
+
+    @Override
+    public int nth(final int n) throws IllegalArgumentException {
+        Preconditions.checkArgument(n > 0, "The index must be positive");
+        Preconditions.checkArgument(n <= PrimeCounting.PRIMES_IN_INT_RANGE,
+                "There are only " + PrimeCounting.PRIMES_IN_INT_RANGE + " primes in the int range");
+        if (n == 1) return 2;
+
+        int odd = n - 1;
+        int last = segmentOf((int) Math.min(PrimeCounting.nthPrimeUpperBound(n), Integer.MAX_VALUE));
+        sieveUntil(last);
+
+        // the last segment with less than odd primes before it
+        int low = 0;
+        int high = last;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rank[mid] < odd) low = mid;
+            else high = mid - 1;
+        }
+
+        return (int) firstNumberOf(low) + 2 * Sieve.select(segments[low], odd - rank[low]);
+    }
+
+    @Override
+    public OptionalInt lastPrimeUntil(final int number) throws IllegalArgumentException {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+        if (number < 2) return OptionalInt.empty();
+        if (number < 3) return OptionalInt.of(2);
+
+        int odd = (number - 1) >>> 1;   // bit of the largest odd number not greater than the number
+        int last = odd / segmentBits;
+        sieveUntil(last);
+        int bit = odd % segmentBits;
+        for (int s = last; s >= 0; --s, bit = segmentBits - 1) {
+            int p = Sieve.lastSetBit(segments[s], bit);
+            if (p >= 0) return OptionalInt.of((int) firstNumberOf(s) + 2 * p);
+        }
+        return OptionalInt.of(2);
+    }
+
+    @Override
+    public boolean isPrime(final long number) {
+        if (number < 2 || number > Integer.MAX_VALUE) return MillerRabin.isPrime(number);
+        if ((number & 1) == 0) return number == 2;
+
+        int bit = (int) (number >>> 1);
+        int segment = bit / segmentBits;
+        // segments are not sieved only for this test
+        if (segment >= sieved) return MillerRabin.isPrime(number);
+
+        bit -= segment * segmentBits;
+        return Sieve.isSet(segments[segment], bit);
+    }
+
+    private static int[] headUntil(int[] primes, int number) {
+        int idx = Arrays.binarySearch(primes, number);
+        int length = idx >= 0 ? idx + 1 : -idx - 1;
+        return length == primes.length ? primes : Arrays.copyOf(primes, length);
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConfigurationProperties(prefix = "generator.segmented")
+    @Data
+    static class SegmentedConfig {
+        /**
+         * Size of one segment in bytes, should fit into the L1 or L2 cache.
+         */
+        private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+        /**
+         * Number of threads sieving the segments, 1 means the requesting thread sieves.
+         */
+        private int parallelism = 1;
+        /**
+         * Where the sieved segments are kept.
+         */
+        private Storage storage = Storage.HEAP;
+        /**
+         * The bitmap file of {@link Storage#MAPPED} storage.
+         */
+        private Path file = Path.of("primes.bitmap");
+    }
+
+    enum Storage {
+        HEAP,
+        MAPPED
+    }
+}
@@ -0,0 +1,155 @@
+package com.szepep.dixa.primes.service;
+
+import java.nio.LongBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * The sieve kernel shared by the generators and the window sieve: the base primes, crossing off their multiples and
+ * the queries of the sieved words.
+ * <p>
+ * A bitmap stores either every number, one bit per number, or only the odd numbers, one bit per two numbers. Only the
+ * odd multiples of the odd base primes are crossed off in both layouts, the even numbers of the first layout are
+ * cleared by its initial fill.
+ */
+final class Sieve {
+
+    /**
+     * Odd primes until sqrt({@link Integer#MAX_VALUE}), enough to sieve any segment of the int range.
+     */
+    static final int[] BASE_PRIMES = oddPrimesUntil((int) Math.sqrt(Integer.MAX_VALUE) + 1);
+
+    private Sieve() {
+    }
+
+    /**
+     * Simple sieve for the small base primes.
+     *
+     * @return The odd primes until n, inclusive.
+     */
+    static int[] oddPrimesUntil(int n) {
+        var composite = new boolean[n + 1];
+        for (int i = 3; i * i <= n; i += 2)
+            if (!composite[i])
+                for (int j = i * i; j <= n; j += 2 * i)
+                    composite[j] = true;
+
+        return IntStream.iterate(3, i -> i <= n, i -> i + 2)
+                .filter(i -> !composite[i])
+                .toArray();
+    }
+
+    /**
+     * Crosses off the odd multiples of the primes, from their squares, in the bitmap.
+     *
+     * @param words  The bitmap.
+     * @param low    The number of the first bit, odd if only odd numbers are stored.
+     * @param bits   Number of bits of the bitmap.
+     * @param odd    Only odd numbers are stored.
+     * @param primes Odd primes in ascending order, the primes with square beyond the bitmap are skipped.
+     */
+    static void crossOff(long[] words, long low, int bits, boolean odd, int[] primes) {
+        for (int p : primes)
+            if (!crossOff(words, low, bits, odd, p)) break;
+    }
+
+    /**
+     * Crosses off the odd multiples of one prime, from its square, in the bitmap.
+     *
+     * @return False if the square of the prime is beyond the bitmap, nothing is crossed off.
+     */
+    static boolean crossOff(long[] words, long low, int bits, boolean odd, int prime) {
+        int shift = odd ? 1 : 0;
+        long high = low + ((long) bits << shift);   // exclusive
+        long square = (long) prime * prime;
+        if (square >= high) return false;
+
+        long first = Math.max(square, (low + prime - 1) / prime * prime);
+        if ((first & 1) == 0) first += prime;       // even multiples are not stored or already cleared
+        if (first >= high) return true;
+
+        int j = (int) ((first - low) >>> shift);
+        long step = (long) prime << (1 - shift);
+        if (step >= bits) {
+            words[j >>> 6] &= ~(1L << j);           // the only multiple in the bitmap
+            return true;
+        }
+        for (; j < bits; j += (int) step)
+            words[j >>> 6] &= ~(1L << j);
+        return true;
+    }
+
+    /**
+     * Number of set bits among the first bits.
+     */
+    static int count(LongBuffer words, int bits) {
+        int full = bits >>> 6;
+        int count = 0;
+        for (int w = 0; w < full; ++w) count += Long.bitCount(words.get(w));
+        if ((bits & 63) != 0) count += Long.bitCount(words.get(full) & ((1L << bits) - 1));
+        return count;
+    }
+
+    /**
+     * Collects the numbers of the set bits among the first bits walking the set bits word by word.
+     *
+     * @param low The number of the first bit.
+     * @param odd Only odd numbers are stored.
+     */
+    static int[] primesOf(LongBuffer words, int bits, long low, boolean odd) {
+        int shift = odd ? 1 : 0;
+        var primes = new int[count(words, bits)];
+        int idx = 0;
+        for (int w = 0; idx < primes.length; ++w)
+            for (long word = words.get(w); word != 0 && idx < primes.length; word &= word - 1)
+                primes[idx++] = (int) (low + ((long) ((w << 6) + Long.numberOfTrailingZeros(word)) << shift));
+        return primes;
+    }
+
+    /**
+     * {@link #primesOf(LongBuffer, int, long, boolean)} beyond the int range.
+     */
+    static long[] longPrimesOf(LongBuffer words, int bits, long low, boolean odd) {
+        int shift = odd ? 1 : 0;
+        var primes = new long[count(words, bits)];
+        int idx = 0;
+        for (int w = 0; idx < primes.length; ++w)
+            for (long word = words.get(w); word != 0 && idx < primes.length; word &= word - 1)
+                primes[idx++] = low + ((long) ((w << 6) + Long.numberOfTrailingZeros(word)) << shift);
+        return primes;
+    }
+
+    /**
+     * @param k Index of the set bit, starting from 1.
+     * @return Index of the kth set bit, -1 if there are less set bits.
+     */
+    static int select(LongBuffer words, int k) {
+        int remaining = k;
+        for (int w = 0; w < words.limit(); ++w) {
+            long word = words.get(w);
+            int count = Long.bitCount(word);
+            if (remaining > count) {
+                remaining -= count;
+                continue;
+            }
+            for (int i = 1; i < remaining; ++i) word &= word - 1;
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index of the last set bit not greater than bit, -1 if there is none.
+     */
+    static int lastSetBit(LongBuffer words, int bit) {
+        for (int w = bit >>> 6; w >= 0; --w) {
+            long word = words.get(w);
+            if (w == bit >>> 6) word &= -1L >>> (63 - (bit & 63)); // bits until the bit
+            if (word != 0) return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+        }
+        return -1;
+    }
+
+    static boolean isSet(LongBuffer words, int bit) {
+        return (words.get(bit >>> 6) & (1L << bit)) != 0;
+    }
+}
@@ -0,0 +1,46 @@
+package com.szepep.dixa.primes.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers of the sieve extension, nothing is recorded until bound to a registry.
+ * <p>
+ * A stalled sieve shows up as a growing maximum of the wait timer, the requests queue up behind the extension.
+ */
+@ThreadSafe
+final class SieveMetrics implements MeterBinder {
+
+    private volatile Timer extension;
+    private volatile Timer wait;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        extension = Timer.builder("primes.sieve.extension")
+                .description("Time of sieving one new segment")
+                .register(registry);
+        wait = Timer.builder("primes.sieve.wait")
+                .description("Time waiting for other threads extending the sieve")
+                .register(registry);
+    }
+
+    /**
+     * Records the sieving of a segment started at the time.
+     */
+    void extended(long startNanos) {
+        var timer = extension;
+        if (timer != null) timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the waiting for a lock or a computation of other thread started at the time.
+     */
+    void waited(long startNanos) {
+        var timer = wait;
+        if (timer != null) timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,360 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Bitmap of the whole int range split into immutable segments, one bit per number.
+ * <p>
+ * Every segment is sieved independently by the {@link Sieve#BASE_PRIMES} and published into a directory of fixed
+ * size, a published segment is never modified. Readers only do volatile reads of the directory, they never lock and
+ * never see a resize. The bitmap grows by publishing new segments, the existing ones are not copied.
+ * <p>
+ * The segments published contiguously from the first one are counted by a rank index, it answers the counting
+ * queries of the generators, they pass their own lookup which sieves the missing segments.
+ * <p>
+ * The number of resident segments can be bounded. Above the bound a segment is evicted by the CLOCK algorithm, the
+ * segments which were not read since the last sweep go first. An evicted segment is sieved again on demand, a reader
+ * which still holds it is not affected. The rank index is kept after eviction.
+ */
+@ThreadSafe
+final class SieveSegments implements MeterBinder {
+
+    /**
+     * Numbers in one segment, 8KB fits into the L1 cache.
+     */
+    static final int SEGMENT_BITS = 1 << 16;
+
+    /**
+     * Number of segments, the last one ends with {@link Integer#MAX_VALUE}.
+     */
+    static final int SEGMENT_COUNT = (int) ((Integer.MAX_VALUE + 1L) / SEGMENT_BITS);
+
+    /**
+     * Size of one segment.
+     */
+    static final int SEGMENT_BYTES = SEGMENT_BITS / Byte.SIZE;
+
+    private static final int WORDS = SEGMENT_BITS / Long.SIZE;
+
+    private final AtomicReferenceArray<LongBuffer> directory = new AtomicReferenceArray<>(SEGMENT_COUNT);
+
+    /**
+     * Number of primes in the segment plus one, zero if the segment was never sieved. Kept after eviction.
+     */
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(SEGMENT_COUNT);
+
+    /**
+     * Rank index, rank[s] is the number of primes less than s * SEGMENT_BITS. Published by the volatile contiguous,
+     * the entries until contiguous are valid.
+     */
+    private final int[] rank = new int[SEGMENT_COUNT + 1];
+
+    /**
+     * Number of segments counted without gap from the first one.
+     */
+    private volatile int contiguous = 0;
+
+    /**
+     * The largest number of resident segments.
+     */
+    private final int maxSegments;
+
+    /**
+     * Set by the readers, cleared by the CLOCK hand.
+     */
+    private final AtomicIntegerArray referenced = new AtomicIntegerArray(SEGMENT_COUNT);
+    private final AtomicInteger resident = new AtomicInteger();
+    @GuardedBy("this")
+    private int hand = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SieveSegments() {
+        this(SEGMENT_COUNT);
+    }
+
+    /**
+     * @param maxSegments The largest number of resident segments, at least 2.
+     */
+    SieveSegments(int maxSegments) {
+        Preconditions.checkArgument(maxSegments >= 2, "At least 2 segments must be kept");
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * The number of segments fitting into the memory, all segments if the memory is not positive.
+     */
+    static int segmentsOf(long memoryBytes) {
+        if (memoryBytes <= 0) return SEGMENT_COUNT;
+        return (int) Math.max(2, Math.min(SEGMENT_COUNT, memoryBytes / SEGMENT_BYTES));
+    }
+
+    /**
+     * The largest number whose segments are all kept resident, the segments above it evict the earlier ones.
+     */
+    int residentLimit() {
+        return lastNumberOf(maxSegments - 1);
+    }
+
+    static int segmentOf(int number) {
+        return number / SEGMENT_BITS;
+    }
+
+    /**
+     * @return The largest number of the segment.
+     */
+    static int lastNumberOf(int segment) {
+        return (int) ((segment + 1L) * SEGMENT_BITS - 1);
+    }
+
+    /**
+     * @return Index of the bit of the number inside its segment.
+     */
+    static int bitOf(int number) {
+        return number % SEGMENT_BITS;
+    }
+
+    /**
+     * Looks the segment up for a reader, counted as a hit and referenced if it is published.
+     *
+     * @return The published segment, null if it is not sieved yet or evicted.
+     */
+    LongBuffer get(int segment) {
+        var words = directory.get(segment);
+        if (words != null) {
+            hits.increment();
+            if (maxSegments < SEGMENT_COUNT && referenced.get(segment) == 0) referenced.lazySet(segment, 1);
+        }
+        return words;
+    }
+
+    /**
+     * Probes the segment without counting or referencing it, for the checks of the sieving itself.
+     *
+     * @return The published segment, null if it is not sieved yet or evicted.
+     */
+    LongBuffer peek(int segment) {
+        return directory.get(segment);
+    }
+
+    /**
+     * Publishes the segment unless other thread was faster, counted as a miss if it is published. The segment is
+     * counted before it is published, a reader of a segment published in order finds its rank valid.
+     *
+     * @return The published segment, computed by this or other thread.
+     */
+    LongBuffer publish(int segment, long[] sieved) {
+        var words = LongBuffer.wrap(sieved);
+        counts.compareAndSet(segment, 0, Sieve.count(words, SEGMENT_BITS) + 1);
+        if (segment >= contiguous) advance();
+
+        while (!directory.compareAndSet(segment, null, words)) {
+            var published = directory.get(segment);
+            if (published != null) return published;
+        }
+        misses.increment();
+        if (resident.incrementAndGet() > maxSegments) evict(segment);
+        return words;
+    }
+
+    private synchronized void advance() {
+        int c = contiguous;
+        int count;
+        while (c < SEGMENT_COUNT && (count = counts.get(c)) != 0) {
+            rank[c + 1] = rank[c] + count - 1;
+            ++c;
+        }
+        contiguous = c;
+    }
+
+    /**
+     * Evicts segments until the bound by the CLOCK algorithm, the just published segment is kept.
+     */
+    private synchronized void evict(int published) {
+        for (int visited = 0; resident.get() > maxSegments; ++visited) {
+            int s = hand;
+            hand = (hand + 1) % SEGMENT_COUNT;
+            if (s == published || directory.get(s) == null) continue;
+            // second chance, unless the readers keep referencing everything
+            if (visited < 2 * SEGMENT_COUNT && referenced.getAndSet(s, 0) != 0) continue;
+
+            if (directory.getAndSet(s, null) != null) {
+                resident.decrementAndGet();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Lookups which found the segment published. A lookup which waits for the sieving of other thread is neither a hit
+     * nor a miss, its time is reported by {@link SieveMetrics}.
+     */
+    long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Segments sieved and published because they were not sieved yet or evicted, a sieving which lost the race of
+     * publishing is not counted.
+     */
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    int resident() {
+        return resident.get();
+    }
+
+    /**
+     * @return Number of segments counted without gap from the first one.
+     */
+    int contiguous() {
+        return contiguous;
+    }
+
+    /**
+     * @param segment Segment not greater than {@link #contiguous()}.
+     * @return Number of primes before the segment.
+     */
+    int rank(int segment) {
+        return rank[segment];
+    }
+
+    /**
+     * Sieves the segments before the segment which are not counted yet.
+     *
+     * @param segments Returns a segment, sieves it if it is missing.
+     * @return Number of primes before the segment.
+     */
+    private int rankOf(int segment, IntFunction<LongBuffer> segments) {
+        // a returned segment is counted, every segment until it is counted once all are returned
+        for (int s = contiguous; s < segment; ++s) segments.apply(s);
+        return rank[segment];
+    }
+
+    /**
+     * Number of primes less than or equal to the number from the rank index, only the missing segments until the
+     * number are sieved.
+     *
+     * @param segments Returns a segment of the generator, sieves it if it is missing.
+     */
+    int countUntil(int number, IntFunction<LongBuffer> segments) {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+
+        int last = segmentOf(number);
+        return rankOf(last, segments) + Sieve.count(segments.apply(last), bitOf(number) + 1);
+    }
+
+    /**
+     * The nth prime by a binary search of the rank index.
+     *
+     * @param segments Returns a segment of the generator, sieves it if it is missing.
+     */
+    int nth(int n, IntFunction<LongBuffer> segments) {
+        Preconditions.checkArgument(n > 0, "The index must be positive");
+        Preconditions.checkArgument(n <= PrimeCounting.PRIMES_IN_INT_RANGE,
+                "There are only " + PrimeCounting.PRIMES_IN_INT_RANGE + " primes in the int range");
+
+        int limit = (int) Math.min(PrimeCounting.nthPrimeUpperBound(n), Integer.MAX_VALUE);
+        int lastSegment = segmentOf(limit);
+        rankOf(lastSegment, segments);
+
+        // the last segment with less than n primes before it
+        int low = 0;
+        int high = lastSegment;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rank[mid] < n) low = mid;
+            else high = mid - 1;
+        }
+        return low * SEGMENT_BITS + Sieve.select(segments.apply(low), n - rank[low]);
+    }
+
+    /**
+     * The largest prime less than or equal to the number, the segments are read backwards from the number.
+     *
+     * @param segments Returns a segment of the generator, sieves it if it is missing.
+     */
+    OptionalInt lastPrimeUntil(int number, IntFunction<LongBuffer> segments) {
+        Preconditions.checkArgument(number >= 0, "The number must be zero or positive");
+
+        int bit = bitOf(number);
+        for (int s = segmentOf(number); s >= 0; --s, bit = SEGMENT_BITS - 1) {
+            int p = Sieve.lastSetBit(segments.apply(s), bit);
+            if (p >= 0) return OptionalInt.of(s * SEGMENT_BITS + p);
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * Reads the number from its published segment, the other numbers are tested by Miller-Rabin, they are not sieved
+     * only for this test.
+     */
+    boolean isPrime(long number) {
+        if (number < 0 || number > Integer.MAX_VALUE) return MillerRabin.isPrime(number);
+        var words = get(segmentOf((int) number));
+        return words != null ? Sieve.isSet(words, bitOf((int) number)) : MillerRabin.isPrime(number);
+    }
+
+    /**
+     * @return The largest number sieved without gap from zero, -1 if nothing is sieved.
+     */
+    int max() {
+        return lastNumberOf(contiguous - 1);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("primes.sieve.max", this, SieveSegments::max)
+                .description("The largest number sieved without gap")
+                .register(registry);
+        Gauge.builder("primes.sieve.memory", this, s -> (double) s.resident() * SEGMENT_BYTES)
+                .description("Memory of the resident segments")
+                .baseUnit(BaseUnits.BYTES)
+                .register(registry);
+        FunctionCounter.builder("primes.sieve.segments", this, SieveSegments::hits)
+                .description("Segment reads, a miss sieves the segment")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("primes.sieve.segments", this, SieveSegments::misses)
+                .description("Segment reads, a miss sieves the segment")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("primes.sieve.evictions", this, SieveSegments::evictions)
+                .description("Evicted segments")
+                .register(registry);
+    }
+
+    /**
+     * Sieves the segment, the result does not depend on other segments.
+     */
+    static long[] sieve(int segment) {
+        var words = new long[WORDS];
+        Arrays.fill(words, 0xAAAAAAAAAAAAAAAAL); // odd numbers, every segment starts with an even number
+        Sieve.crossOff(words, (long) segment * SEGMENT_BITS, SEGMENT_BITS, false, Sieve.BASE_PRIMES);
+        if (segment == 0) words[0] = (words[0] & ~0b10L) | 0b100L; // 1 is not a prime, 2 is
+        return words;
+    }
+}
@@ -0,0 +1,23 @@
+package com.szepep.dixa.primes.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * The warm-up of the sieve in the actuator readiness group, out of service until the pre-sieving reaches the warm-up
+ * limit like the gRPC health service.
+ */
+@Component
+@RequiredArgsConstructor
+class WarmUpHealthIndicator implements HealthIndicator {
+
+    private final PreSieving preSieving;
+
+    @Override
+    public Health health() {
+        var health = preSieving.warmedUp().isDone() ? Health.up() : Health.outOfService();
+        return health.withDetail("sieved", preSieving.sieved()).build();
+    }
+}
@@ -0,0 +1,170 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Segmented Eratosthenes sieve of windows anywhere in the 64-bit range.
+ * <p>
+ * Only odd numbers of the current window and the base primes are kept in memory, no bitmap from zero is needed. The
+ * base primes are cached until {@link #CACHED_BASE_LIMIT}, the larger ones needed above its square are sieved block by
+ * block for every window and not kept, the memory does not grow with the position of the range.
+ * <p>
+ * Every window crosses off the multiples of all base primes until sqrt of its end, the cost of a window is its size
+ * plus about sqrt(to) / ln(sqrt(to)) base primes. Far from zero the base primes dominate: a window at 10^18 visits 51
+ * million base primes, at the largest number 105 million and sieves the base primes above the cache again, a few
+ * seconds for a window of any size. A range is as expensive as its number of windows times this cost.
+ */
+@ThreadSafe
+final class WindowSieve {
+
+    /**
+     * The largest supported number, the base primes fit into int.
+     */
+    static final long MAX_NUMBER = (long) Integer.MAX_VALUE * Integer.MAX_VALUE;
+
+    /**
+     * Odd numbers in one window, 32KB bitmap.
+     */
+    private static final int WINDOW_BITS = 1 << 18;
+    private static final long WINDOW_SPAN = 2L * WINDOW_BITS;
+
+    private static final int SIMPLE_SIEVE_LIMIT = 1 << 16;
+
+    /**
+     * The base primes are cached until this number, 4MB of primes serving the windows until 2^48.
+     */
+    static final int CACHED_BASE_LIMIT = 1 << 24;
+
+    /**
+     * The largest base prime table computed so far, shared by all ranges, at most until {@link #CACHED_BASE_LIMIT}.
+     */
+    private static final AtomicReference<BasePrimes> BASE_PRIMES = new AtomicReference<>(new BasePrimes(0, new int[0]));
+
+    private WindowSieve() {
+    }
+
+    /**
+     * Lazy stream of primes in the range.
+     *
+     * @param from The lower bound, inclusive.
+     * @param to   The upper bound, inclusive.
+     * @return Ordered stream of primes.
+     * @throws IllegalArgumentException if the range is not valid.
+     */
+    static LongStream primesBetween(final long from, final long to) throws IllegalArgumentException {
+        return chunksBetween(from, to).flatMapToLong(LongStream::of);
+    }
+
+    /**
+     * Lazy stream of the primes in the range, one chunk per window.
+     *
+     * @param from The lower bound, inclusive.
+     * @param to   The upper bound, inclusive.
+     * @return Stream of non-empty chunks, the primes are ascending across the chunks.
+     * @throws IllegalArgumentException if the range is not valid.
+     */
+    static Stream<long[]> chunksBetween(final long from, final long to) throws IllegalArgumentException {
+        Preconditions.checkArgument(from >= 0, "The lower bound must be zero or positive");
+        Preconditions.checkArgument(to <= MAX_NUMBER, "The number must be less than or equal to " + MAX_NUMBER);
+        if (to < 2 || from > to) return Stream.empty();
+
+        int[] basePrimes = basePrimes(to);
+        long first = Math.max(from, 3) | 1;  // the first odd candidate
+        Stream<long[]> odd = LongStream.iterate(first, low -> low <= to, low -> low + WINDOW_SPAN)
+                .mapToObj(low -> sieve(low, Math.min(to, low + WINDOW_SPAN - 1), basePrimes))
+                .filter(chunk -> chunk.length > 0);
+        return from <= 2 ? Stream.concat(Stream.of(new long[]{2}), odd) : odd;
+    }
+
+    /**
+     * Sieves the odd numbers of [low, high].
+     *
+     * @param low        Odd lower bound, inclusive.
+     * @param high       Upper bound, inclusive.
+     * @param basePrimes The cached odd primes, until sqrt(high) or until {@link #CACHED_BASE_LIMIT}.
+     * @return Primes of the window.
+     */
+    private static long[] sieve(long low, long high, int[] basePrimes) {
+        int bits = (int) ((high - low) / 2 + 1);
+        var words = new long[(bits + Long.SIZE - 1) / Long.SIZE];
+        Arrays.fill(words, -1L);
+
+        Sieve.crossOff(words, low, bits, true, basePrimes);
+        if (baseLimit(high) > CACHED_BASE_LIMIT) crossOffLargeBasePrimes(words, low, bits, baseLimit(high));
+        return Sieve.longPrimesOf(LongBuffer.wrap(words), bits, low, true);
+    }
+
+    /**
+     * Crosses off the base primes above the cache, sieved block by block by the small base primes.
+     *
+     * @param limit The largest base prime needed.
+     */
+    private static void crossOffLargeBasePrimes(long[] words, long low, int bits, int limit) {
+        var block = new long[WINDOW_BITS / Long.SIZE];
+        for (long blockLow = CACHED_BASE_LIMIT + 1; blockLow <= limit; blockLow += WINDOW_SPAN) {
+            int blockBits = (int) Math.min(WINDOW_BITS, (limit - blockLow) / 2 + 1);
+            Arrays.fill(block, -1L);
+            Sieve.crossOff(block, blockLow, blockBits, true, Sieve.BASE_PRIMES);
+
+            for (int w = 0; w < (blockBits + Long.SIZE - 1) / Long.SIZE; ++w) {
+                for (long word = block[w]; word != 0; word &= word - 1) {
+                    int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (bit >= blockBits) break;
+                    Sieve.crossOff(words, low, bits, true, (int) (blockLow + 2L * bit));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The largest base prime needed until the number.
+     */
+    private static int baseLimit(long number) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt((double) number) + 1);
+    }
+
+    /**
+     * The cached odd primes, at least until sqrt(n) or until {@link #CACHED_BASE_LIMIT}.
+     */
+    static int[] basePrimes(long n) {
+        int limit = Math.min(CACHED_BASE_LIMIT, baseLimit(n));
+
+        var cached = BASE_PRIMES.get();
+        if (cached.limit >= limit) return cached.primes;
+
+        var computed = limit <= SIMPLE_SIEVE_LIMIT
+                ? new BasePrimes(SIMPLE_SIEVE_LIMIT, Sieve.oddPrimesUntil(SIMPLE_SIEVE_LIMIT))
+                : new BasePrimes(limit, primesBetween(3, limit).mapToInt(p -> (int) p).toArray());
+        BASE_PRIMES.accumulateAndGet(computed, (a, b) -> a.limit >= b.limit ? a : b);
+        return computed.primes;
+    }
+
+    /**
+     * @return The limit of the cached base primes.
+     */
+    @VisibleForTesting
+    static int cachedBaseLimit() {
+        return BASE_PRIMES.get().limit;
+    }
+
+    /**
+     * All odd primes until the limit.
+     */
+    private static final class BasePrimes {
+        private final int limit;
+        private final int[] primes;
+
+        private BasePrimes(int limit, int[] primes) {
+            this.limit = limit;
+            this.primes = primes;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunksTest {
+
+    @Test
+    void chunksAreRegrouped() {
+        var chunks = Chunks.resize(Stream.of(new int[]{1, 2}, new int[]{3}, new int[]{4, 5, 6, 7, 8}), 3)
+                .collect(toList());
+
+        assertEquals(3, chunks.size());
+        assertArrayEquals(new int[]{1, 2, 3}, chunks.get(0));
+        assertArrayEquals(new int[]{4, 5, 6}, chunks.get(1));
+        assertArrayEquals(new int[]{7, 8}, chunks.get(2));
+    }
+
+    @Test
+    void chunkOfRightSizeIsNotCopied() {
+        var chunk = new int[]{1, 2, 3};
+
+        var chunks = Chunks.resize(Stream.of(chunk), 3).collect(toList());
+
+        assertEquals(1, chunks.size());
+        assertSame(chunk, chunks.get(0));
+    }
+
+    @Test
+    void emptyStreamHasNoChunk() {
+        assertEquals(0, Chunks.resize(Stream.empty(), 3).count());
+        assertEquals(0, Chunks.resize(Stream.of(new int[0]), 3).count());
+    }
+
+    @Test
+    void sameOrderedPrimesAsGenerator() {
+        var generator = new EratosthenesGenerator();
+        var n = 100_000;
+
+        assertArrayEquals(
+                generator.primesUntil(n).mapToInt(Integer::intValue).toArray(),
+                Chunks.resize(generator.primeChunksUntil(n), 1000).flatMapToInt(IntStream::of).toArray());
+    }
+
+    @Test
+    void invalidSizeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Chunks.resize(Stream.empty(), 0));
+    }
+}
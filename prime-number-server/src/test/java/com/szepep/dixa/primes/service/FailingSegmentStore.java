@@ -0,0 +1,50 @@
+package com.szepep.dixa.primes.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+
+/**
+ * Store failing the writes of a segment until it is healed, e.g. on a full disk.
+ */
+final class FailingSegmentStore implements SegmentStore {
+    private final SegmentStore store;
+    private final int segment;
+    private volatile boolean failing = true;
+
+    FailingSegmentStore(SegmentStore store, int segment) {
+        this.store = store;
+        this.segment = segment;
+    }
+
+    void heal() {
+        failing = false;
+    }
+
+    @Override
+    public int committed() {
+        return store.committed();
+    }
+
+    @Override
+    public LongBuffer read(int segment) {
+        return store.read(segment);
+    }
+
+    @Override
+    public LongBuffer write(int segment, long[] words) {
+        if (segment == this.segment && failing)
+            throw new UncheckedIOException(new IOException("No space left on device"));
+        return store.write(segment, words);
+    }
+
+    @Override
+    public void commit(int count) {
+        store.commit(count);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
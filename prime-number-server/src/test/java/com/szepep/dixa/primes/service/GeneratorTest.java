@@ -0,0 +1,199 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeneratorTest {
+
+    private static List<Generator> generators() {
+        return List.of(
+                new LazyGenerator(),
+                new EratosthenesGenerator(),
+                new NonBlockingEratosthenesGenerator(),
+                new SegmentedEratosthenesGenerator(1024),
+                // bounded memory, the segments are evicted and sieved again
+                new EratosthenesGenerator(2),
+                new NonBlockingEratosthenesGenerator(2));
+    }
+
+    @Test
+    void chunksHaveSamePrimesAsStream() {
+        var expected = new EratosthenesGenerator();
+
+        for (var generator : generators())
+            IntStream.of(0, 1, 2, 3, 999, 1000, 1001, 16_383, 16_384, 16_385, 100_000).forEach(n -> assertArrayEquals(
+                    expected.primesUntil(n).mapToInt(Integer::intValue).toArray(),
+                    generator.primeChunksUntil(n).flatMapToInt(IntStream::of).toArray(),
+                    "Different result for " + n + " by " + generator.getClass().getSimpleName()));
+    }
+
+    @Test
+    void chunksFromTheLowerBoundHaveSamePrimesAsStream() {
+        var n = 100_000;
+        var primes = new EratosthenesGenerator().primesUntil(n).mapToInt(Integer::intValue).toArray();
+
+        for (var generator : generators())
+            IntStream.of(0, 1, 2, 3, 1000, 16_383, 16_384, 16_385, 65_536, 99_991, n).forEach(from -> assertArrayEquals(
+                    IntStream.of(primes).filter(p -> p >= from).toArray(),
+                    generator.primeChunksFrom(from, n).flatMapToInt(IntStream::of).toArray(),
+                    "Different result from " + from + " by " + generator.getClass().getSimpleName()));
+    }
+
+    @Test
+    void chunksAboveTheSievedPrefixSieveOnlyTheirSegments() {
+        var from = 10 * SieveSegments.SEGMENT_BITS + 1;
+        var n = 12 * SieveSegments.SEGMENT_BITS - 1;
+        var primes = new EratosthenesGenerator().primesUntil(n).mapToInt(Integer::intValue).toArray();
+
+        var eratosthenes = new EratosthenesGenerator();
+        var nonBlocking = new NonBlockingEratosthenesGenerator();
+        for (var generator : List.<Generator>of(eratosthenes, nonBlocking))
+            assertArrayEquals(IntStream.of(primes).filter(p -> p >= from).toArray(),
+                    generator.primeChunksFrom(from, n).flatMapToInt(IntStream::of).toArray(),
+                    "Different result by " + generator.getClass().getSimpleName());
+
+        for (var segments : List.of(eratosthenes.segments(), nonBlocking.segments())) {
+            assertEquals(2, segments.misses(), "Only the segments of the range are sieved");
+            assertEquals(0, segments.contiguous());
+        }
+
+        assertEquals(primes.length, eratosthenes.countUntil(n));
+        assertEquals(12, eratosthenes.segments().misses(), "The prefix sieves only the missing segments");
+        assertEquals(12, eratosthenes.segments().contiguous());
+    }
+
+    @Test
+    void countingQueriesMatchTheStream() {
+        var n = 100_000;
+        var primes = new EratosthenesGenerator().primesUntil(n).mapToInt(Integer::intValue).toArray();
+
+        for (var generator : generators()) {
+            var name = generator.getClass().getSimpleName();
+            IntStream.of(0, 1, 2, 3, 4, 4095, 4096, 4097, 16_383, 16_384, 16_385, 65_536, 99_991, n).forEach(i -> {
+                int count = (int) IntStream.of(primes).filter(p -> p <= i).count();
+                assertEquals(count, generator.countUntil(i), "Count of " + i + " by " + name);
+                assertEquals(count == 0 ? OptionalInt.empty() : OptionalInt.of(primes[count - 1]),
+                        generator.lastPrimeUntil(i), "Last prime until " + i + " by " + name);
+            });
+            IntStream.of(1, 2, 3, 6, 564, 565, 1000, 1900, primes.length).forEach(i ->
+                    assertEquals(primes[i - 1], generator.nth(i), "Prime #" + i + " by " + name));
+        }
+    }
+
+    @Test
+    void countingQueriesOnLargeNumbers() {
+        for (var generator : List.of(new EratosthenesGenerator(), new SegmentedEratosthenesGenerator())) {
+            assertEquals(664_579, generator.countUntil(10_000_000));
+            assertEquals(9_999_991, generator.nth(664_579));
+            assertEquals(OptionalInt.of(9_999_991), generator.lastPrimeUntil(10_000_000));
+            assertEquals(2, generator.nth(1));
+        }
+    }
+
+    @Test
+    void invalidCountingQueryIsRejected() {
+        for (var generator : generators()) {
+            assertThrows(IllegalArgumentException.class, () -> generator.countUntil(-1));
+            assertThrows(IllegalArgumentException.class, () -> generator.lastPrimeUntil(-1));
+            assertThrows(IllegalArgumentException.class, () -> generator.nth(0));
+            assertThrows(IllegalArgumentException.class, () -> generator.nth(PrimeCounting.PRIMES_IN_INT_RANGE + 1));
+        }
+    }
+
+    @Test
+    void primalityTestMatchesTheStream() {
+        var n = 50_000;
+        var primes = new EratosthenesGenerator().primesUntil(n).mapToInt(Integer::intValue).toArray();
+
+        for (var generator : generators()) {
+            var name = generator.getClass().getSimpleName();
+            // first by Miller-Rabin, then from the bitmap
+            for (var sieved : List.of(false, true)) {
+                if (sieved) generator.countUntil(n);
+                var idx = 0;
+                for (int i = -1; i <= n; ++i) {
+                    var prime = idx < primes.length && primes[idx] == i;
+                    if (prime) ++idx;
+                    assertEquals(prime, generator.isPrime(i), "Different result for " + i + " by " + name);
+                }
+            }
+            assertTrue(generator.isPrime(4294967311L));
+            assertFalse(generator.isPrime(4294967313L));
+        }
+    }
+
+    @Test
+    void sieveStepsReachTheNumber() {
+        var n = 300_000;
+        for (var generator : generators()) {
+            var steps = generator.sieveSteps(n).toArray();
+            var name = generator.getClass().getSimpleName();
+
+            assertEquals(n, steps[steps.length - 1], name);
+            for (int i = 1; i < steps.length; ++i) assertTrue(steps[i - 1] < steps[i], name);
+            assertEquals(25_997, generator.countUntil(n), name);
+            assertThrows(IllegalArgumentException.class, () -> generator.sieveSteps(-1).toArray());
+
+            var fromSteps = generator.sieveSteps(n / 2, n).toArray();
+            assertEquals(n, fromSteps[fromSteps.length - 1], name);
+            assertTrue(fromSteps[0] >= n / 2, name);
+            assertThrows(IllegalArgumentException.class, () -> generator.sieveSteps(n, n / 2).toArray());
+        }
+    }
+
+    @Test
+    void chunksAreNotEmptyAndNotBeyondTheNumber() {
+        var n = 200_000;
+        for (var generator : generators()) {
+            var chunks = generator.primeChunksUntil(n).collect(toList());
+
+            assertTrue(chunks.size() > 1, "Primes are split into chunks");
+            chunks.forEach(chunk -> assertTrue(chunk.length > 0));
+            var last = chunks.get(chunks.size() - 1);
+            assertEquals(199_999, last[last.length - 1]);
+        }
+    }
+
+    @Test
+    void negativeNumberIsRejectedByChunks() {
+        for (var generator : generators()) {
+            assertThrows(IllegalArgumentException.class, () -> generator.primeChunksUntil(-1));
+            assertThrows(IllegalArgumentException.class, () -> generator.primeChunksFrom(-1, 10));
+            assertThrows(IllegalArgumentException.class, () -> generator.primeChunksFrom(10, 5));
+        }
+    }
+
+    @Test
+    void rangeIsSievedWithoutThePrimesBelow() {
+        // fake generator, the range must not depend on it
+        Generator generator = number -> Stream.of(2, 3, 5);
+
+        var from = 1_000_000_000L;
+        var to = from + 10_000;
+        var expected = LongStream.rangeClosed(from, to)
+                .filter(i -> BigInteger.valueOf(i).isProbablePrime(50))
+                .toArray();
+
+        assertArrayEquals(expected, generator.primeChunksBetween(from, to).flatMapToLong(LongStream::of).toArray());
+        assertArrayEquals(new long[]{2, 3, 5},
+                generator.primeChunksBetween(0, 6).flatMapToLong(LongStream::of).toArray());
+    }
+
+    @Test
+    void invalidRangeIsRejected() {
+        var generator = new SegmentedEratosthenesGenerator();
+
+        assertThrows(IllegalArgumentException.class, () -> generator.primeChunksBetween(-1, 10));
+        assertThrows(IllegalArgumentException.class, () -> generator.primeChunksBetween(10, 5));
+        assertThrows(IllegalArgumentException.class, () -> generator.primeChunksBetween(0, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,170 @@
+package com.szepep.dixa.primes.service;
+
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.DeltaVarint;
+import com.szepep.dixa.proto.Encoding;
+import com.szepep.dixa.proto.Chunk;
+import com.szepep.dixa.proto.ReactorServiceGrpc;
+import com.szepep.dixa.proto.Request;
+import com.szepep.dixa.proto.ServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static com.szepep.dixa.primes.service.Utils.nextFreePort;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GrpcServiceTest {
+
+    private GrpcService grpcService;
+    private ManagedChannel channel;
+
+    private ReactorServiceGrpc.ReactorServiceStub start(Consumer<GrpcService.GrpcConfig> configurer)
+            throws IOException {
+        var config = new GrpcService.GrpcConfig();
+        config.setPort(nextFreePort(30_000, 40_000));
+        configurer.accept(config);
+
+        var generator = new EratosthenesGenerator();
+        var preSievingConfig = new PreSieving.PreSievingConfig();
+        preSievingConfig.setEnabled(false);
+        var preSieving = new PreSieving(generator, preSievingConfig);
+        var registry = new SimpleMeterRegistry();
+        var primality = new PrimeServiceImpl.PrimalityConfig();
+        var primeService = new PrimeServiceImpl(generator, preSieving, registry, primality);
+        grpcService = new GrpcService(primeService, config, preSieving, registry);
+        grpcService.start();
+
+        channel = ManagedChannelBuilder.forAddress("localhost", config.getPort()).usePlaintext().build();
+        return ReactorServiceGrpc.newReactorStub(channel);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (channel != null) channel.shutdownNow();
+        if (grpcService != null) grpcService.stop();
+    }
+
+    private static void assertServes(ReactorServiceGrpc.ReactorServiceStub stub) {
+        var request = ChunkRequest.newBuilder().setNumber(1_000_000).setEncoding(Encoding.DELTA_VARINT).build();
+        var primes = Flux.from(stub.getChunks(request))
+                .map(chunk -> DeltaVarint.decode(chunk.getDeltas()).length)
+                .reduce(0, Integer::sum)
+                .block();
+        assertEquals(78_498, primes);
+        assertEquals(25, stub.getCount(Request.newBuilder().setNumber(100).build()).block().getCount());
+    }
+
+    @ParameterizedTest
+    @EnumSource(GrpcService.ExecutorModel.class)
+    public void executorModels(GrpcService.ExecutorModel executor) throws IOException {
+        var stub = start(config -> {
+            config.setExecutor(executor);
+            config.setExecutorThreads(2);
+            config.setExecutorQueue(1);
+        });
+
+        assertServes(stub);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void transports(boolean epoll) throws IOException {
+        var stub = start(config -> {
+            // falls back to nio where epoll is not available
+            config.setEpoll(epoll);
+            config.setBossThreads(1);
+            config.setWorkerThreads(2);
+        });
+
+        assertServes(stub);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void flowControlAndCompression(boolean autoFlowControl) throws IOException {
+        var stub = start(config -> {
+            config.setAutoFlowControl(autoFlowControl);
+            config.setFlowControlWindow(DataSize.ofKilobytes(64));
+            config.setCompression("gzip");
+        });
+
+        assertServes(stub.withCompression("gzip"));
+    }
+
+    @Test
+    public void unknownCompressionIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> start(config -> config.setCompression("lz4")));
+    }
+
+    @Test
+    public void boundedExecutorRejectsTheCallsAboveTheLimit() throws Exception {
+        start(config -> {
+            config.setExecutor(GrpcService.ExecutorModel.BOUNDED);
+            config.setExecutorThreads(1);
+            config.setExecutorQueue(0);
+        });
+
+        // the only admitted call stays in progress, blocked by the flow control
+        var first = new CountDownLatch(1);
+        var call = new AtomicReference<ClientCallStreamObserver<ChunkRequest>>();
+        var request = ChunkRequest.newBuilder().setNumber(100_000_000).build();
+        ServiceGrpc.newStub(channel).getChunks(request, new ClientResponseObserver<ChunkRequest, Chunk>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<ChunkRequest> requestStream) {
+                call.set(requestStream);
+                requestStream.disableAutoInboundFlowControl();
+            }
+
+            @Override
+            public void onNext(Chunk value) {
+                first.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+
+        var blocking = ServiceGrpc.newBlockingStub(channel);
+        var count = Request.newBuilder().setNumber(100).build();
+        var e = assertThrows(StatusRuntimeException.class, () -> blocking.getCount(count));
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+
+        call.get().cancel("done", null);
+        var served = false;
+        for (int i = 0; i < 100 && !served; ++i) {
+            try {
+                served = blocking.getCount(count).getCount() == 25;
+            } catch (StatusRuntimeException rejected) {
+                // the slot is released once the cancelled call is processed by the pool
+                Thread.sleep(50);
+            }
+        }
+        assertTrue(served);
+    }
+}
@@ -0,0 +1,179 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedSegmentStoreTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+    private static final int SEGMENT_COUNT = 16;
+
+    @TempDir
+    Path dir;
+
+    private static long[] segment(long value) {
+        var words = new long[SEGMENT_BYTES / Long.BYTES];
+        Arrays.fill(words, value);
+        return words;
+    }
+
+    private static long[] toArray(LongBuffer buffer) {
+        var words = new long[buffer.remaining()];
+        buffer.duplicate().get(words);
+        return words;
+    }
+
+    private MappedSegmentStore open(Path file) throws IOException {
+        return new MappedSegmentStore(file, SEGMENT_BYTES, SEGMENT_COUNT);
+    }
+
+    @Test
+    void newFileHasNoSegments() throws IOException {
+        try (var store = open(dir.resolve("primes.bitmap"))) {
+            assertEquals(0, store.committed());
+        }
+    }
+
+    @Test
+    void committedSegmentsSurviveReopen() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        try (var store = open(file)) {
+            assertArrayEquals(segment(1), toArray(store.write(0, segment(1))));
+            store.write(1, segment(2));
+            store.write(2, segment(3));
+            store.commit(2);
+        }
+
+        try (var store = open(file)) {
+            assertEquals(2, store.committed(), "Only committed segments are restored");
+            assertArrayEquals(segment(1), toArray(store.read(0)));
+            assertArrayEquals(segment(2), toArray(store.read(1)));
+            assertThrows(IndexOutOfBoundsException.class, () -> store.read(2));
+        }
+    }
+
+    @Test
+    void corruptedSegmentIsTruncated() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        try (var store = open(file)) {
+            for (int s = 0; s < 4; ++s) store.write(s, segment(s + 1));
+            store.commit(4);
+        }
+
+        try (var raw = new RandomAccessFile(file.toFile(), "rw")) {
+            // flip a byte in the middle of the data, segments are at the end of the file
+            long offset = raw.length() - (SEGMENT_COUNT - 2L) * SEGMENT_BYTES + 10;
+            raw.seek(offset);
+            int b = raw.read();
+            raw.seek(offset);
+            raw.write(b ^ 0xff);
+        }
+
+        try (var store = open(file)) {
+            assertEquals(2, store.committed(), "Segments from the corrupted one are dropped");
+        }
+    }
+
+    @Test
+    void tornHeaderFallsBackToPreviousCommit() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        try (var store = open(file)) {
+            store.write(0, segment(1));
+            store.commit(1);
+            store.write(1, segment(2));
+            store.commit(2);
+        }
+
+        try (var raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(512 + 16); // committed count of the second header slot
+            raw.write(0x7f);
+        }
+
+        try (var store = open(file)) {
+            assertEquals(1, store.committed());
+        }
+    }
+
+    @Test
+    void differentSegmentSizeIsDiscarded() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        try (var store = open(file)) {
+            store.write(0, segment(1));
+            store.commit(1);
+        }
+
+        try (var store = new MappedSegmentStore(file, 2 * SEGMENT_BYTES, SEGMENT_COUNT / 2)) {
+            assertEquals(0, store.committed());
+        }
+    }
+
+    @Test
+    void generatorIsRestoredWithoutSieving() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        int segmentCount = (Integer.MAX_VALUE / 2 + 1) / (SEGMENT_BYTES * Byte.SIZE);
+        var n = 1_000_000;
+
+        var generator = new SegmentedEratosthenesGenerator(SEGMENT_BYTES, 1,
+                new MappedSegmentStore(file, SEGMENT_BYTES, segmentCount));
+        var expected = generator.primesUntil(n).collect(toList());
+        var sieved = generator.sievedSegments();
+        generator.shutdown();
+
+        var restored = new SegmentedEratosthenesGenerator(SEGMENT_BYTES, 1,
+                new MappedSegmentStore(file, SEGMENT_BYTES, segmentCount));
+        try {
+            assertEquals(sieved, restored.sievedSegments());
+            assertEquals(expected, restored.primesUntil(n).collect(toList()));
+            assertEquals(sieved, restored.sievedSegments(), "No new segment is sieved");
+            assertEquals(new EratosthenesGenerator().primesUntil(2 * n).collect(toList()),
+                    restored.primesUntil(2 * n).collect(toList()));
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void failedWriteIsRetriedAndRestored() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        int segmentCount = (Integer.MAX_VALUE / 2 + 1) / (SEGMENT_BYTES * Byte.SIZE);
+        var n = 10 * 2 * SEGMENT_BYTES * Byte.SIZE - 1;
+        var expected = new EratosthenesGenerator().primesUntil(n).collect(toList());
+
+        var store = new FailingSegmentStore(new MappedSegmentStore(file, SEGMENT_BYTES, segmentCount), 3);
+        var generator = new SegmentedEratosthenesGenerator(SEGMENT_BYTES, 1, store);
+        try {
+            assertThrows(CompletionException.class, () -> generator.primesUntil(n).collect(toList()));
+            store.heal();
+            assertEquals(expected, generator.primesUntil(n).collect(toList()));
+        } finally {
+            generator.shutdown();
+        }
+
+        var restored = new SegmentedEratosthenesGenerator(SEGMENT_BYTES, 1,
+                new MappedSegmentStore(file, SEGMENT_BYTES, segmentCount));
+        try {
+            assertEquals(10, restored.sievedSegments());
+            assertEquals(expected, restored.primesUntil(n).collect(toList()));
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void fileIsLockedByTheStore() throws IOException {
+        var file = dir.resolve("primes.bitmap");
+        try (var ignored = open(file)) {
+            assertThrows(IllegalStateException.class, () -> open(file));
+        }
+    }
+}
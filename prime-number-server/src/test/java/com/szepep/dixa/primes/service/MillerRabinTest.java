@@ -0,0 +1,62 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MillerRabinTest {
+
+    private static boolean expected(long n) {
+        return n >= 2 && BigInteger.valueOf(n).isProbablePrime(100);
+    }
+
+    @Test
+    void sameResultAsSieveForSmallNumbers() {
+        var generator = new EratosthenesGenerator();
+        var primes = generator.primesUntil(1_000_000).mapToInt(Integer::intValue).toArray();
+
+        var idx = 0;
+        for (int n = -10; n <= 1_000_000; ++n) {
+            var prime = idx < primes.length && primes[idx] == n;
+            if (prime) ++idx;
+            assertEquals(prime, MillerRabin.isPrime(n), "Different result for " + n);
+        }
+    }
+
+    @Test
+    void strongPseudoprimesAreComposite() {
+        LongStream.of(
+                561, 1105, 1729, 2047, 3215031751L, 4759123141L, 1122004669633L, 2152302898747L,
+                3474749660383L, 341550071728321L, 3825123056546413051L, 318665857834031151L
+        ).forEach(n -> assertFalse(MillerRabin.isPrime(n), n + " is composite"));
+    }
+
+    @Test
+    void largePrimes() {
+        LongStream.of(
+                Integer.MAX_VALUE, 4294967311L, 1_000_000_000_000_000_003L, (1L << 61) - 1, 9223372036854775783L
+        ).forEach(n -> assertTrue(MillerRabin.isPrime(n), n + " is prime"));
+        assertFalse(MillerRabin.isPrime(Long.MAX_VALUE));
+        assertFalse(MillerRabin.isPrime(Long.MIN_VALUE));
+    }
+
+    @Test
+    void sameResultAsBigIntegerForRandomNumbers() {
+        var random = new Random(42);
+        for (int i = 0; i < 100_000; ++i) {
+            var n = random.nextLong() >>> random.nextInt(63);
+            assertEquals(expected(n), MillerRabin.isPrime(n), "Different result for " + n);
+        }
+        // random odd numbers near 2^63 where the Montgomery arithmetic is the tightest
+        for (int i = 0; i < 10_000; ++i) {
+            var n = Long.MAX_VALUE - 2L * random.nextInt(1_000_000);
+            assertEquals(expected(n), MillerRabin.isPrime(n), "Different result for " + n);
+        }
+    }
+}
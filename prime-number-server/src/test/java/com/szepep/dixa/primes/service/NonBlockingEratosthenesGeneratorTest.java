@@ -0,0 +1,86 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NonBlockingEratosthenesGeneratorTest {
+
+    @Test
+    void concurrentRequestsShareTheSegmentComputations() throws Exception {
+        var generator = new NonBlockingEratosthenesGenerator();
+        var n = 5_000_000;
+        var threads = 8;
+
+        var start = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var expected = new EratosthenesGenerator();
+            var counts = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < threads; ++t) {
+                // different limits in the same segments
+                int limit = n - t * 1000;
+                counts.add(executor.submit(() -> {
+                    start.await();
+                    return generator.countUntil(limit);
+                }));
+            }
+            start.countDown();
+            for (int t = 0; t < threads; ++t)
+                assertEquals(expected.countUntil(n - t * 1000), counts.get(t).get(1, TimeUnit.MINUTES));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(SieveSegments.segmentOf(n) + 1, generator.segments().misses(), "Every segment is sieved once");
+    }
+
+    @Test
+    void countingQueriesUseTheRankIndex() {
+        var generator = new NonBlockingEratosthenesGenerator();
+        var expected = new EratosthenesGenerator();
+
+        assertEquals(78_498, generator.countUntil(1_000_000));
+        assertEquals(SieveSegments.segmentOf(1_000_000) + 1, generator.segments().misses());
+        assertEquals(SieveSegments.segmentOf(1_000_000) + 1, generator.segments().contiguous());
+        assertEquals(expected.nth(100_000), generator.nth(100_000));
+        assertEquals(expected.lastPrimeUntil(3_000_000), generator.lastPrimeUntil(3_000_000));
+        assertEquals(OptionalInt.empty(), generator.lastPrimeUntil(1));
+        assertTrue(generator.isPrime(999_983));
+        assertFalse(generator.isPrime(1_000_000));
+    }
+
+    @Test
+    void countingQueriesOfBoundedGenerator() {
+        var generator = new NonBlockingEratosthenesGenerator(4);
+        var expected = new EratosthenesGenerator();
+
+        for (int i = 0; i < 3; ++i) assertEquals(expected.countUntil(5_000_000), generator.countUntil(5_000_000));
+        assertEquals(expected.nth(100_000), generator.nth(100_000));
+        assertEquals(expected.lastPrimeUntil(3_000_000), generator.lastPrimeUntil(3_000_000));
+        assertEquals(4, generator.segments().resident());
+    }
+
+    @Test
+    void asyncStepsCompleteWithTheNumber() {
+        var generator = new NonBlockingEratosthenesGenerator();
+        var n = 1_000_000;
+
+        var steps = generator.sieveStepsAsync(n).map(CompletableFuture::join).collect(toList());
+
+        assertEquals(SieveSegments.segmentOf(n) + 1, steps.size());
+        assertEquals(n, steps.get(steps.size() - 1));
+        assertEquals(78_498, generator.countUntil(n));
+    }
+}
@@ -0,0 +1,140 @@
+package com.szepep.dixa.primes.service;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+class PreSievingTest {
+
+    private static PreSieving.PreSievingConfig config() {
+        var config = new PreSieving.PreSievingConfig();
+        config.setStep(1_000);
+        config.setMemoryBytes(1_000);
+        config.setBusyStep(100);
+        return config;
+    }
+
+    /**
+     * Generator without a memory bound.
+     */
+    private static Generator generator() {
+        var generator = mock(Generator.class);
+        when(generator.residentLimit()).thenReturn(Integer.MAX_VALUE);
+        when(generator.sieveSteps(anyInt(), anyInt()))
+                .thenAnswer(invocation -> IntStream.of(invocation.<Integer>getArgument(1)));
+        return generator;
+    }
+
+    @Test
+    void targetFollowsTheQuantileOfRequests() {
+        var preSieving = new PreSieving(generator(), config());
+        assertEquals(0, preSieving.target());
+
+        for (int i = 0; i < 99; ++i) preSieving.observe(100);
+        preSieving.observe(7_000);
+        assertEquals(127, preSieving.target(), "99% of the requests are until 127");
+
+        preSieving.observe(5_000);
+        assertEquals(7_999, preSieving.target(), "Limited by the memory budget");
+    }
+
+    @Test
+    void targetIsLimitedByTheMemoryBoundOfTheGenerator() {
+        var generator = generator();
+        when(generator.residentLimit()).thenReturn(4_095);
+        var preSieving = new PreSieving(generator, config());
+
+        preSieving.observe(5_000);
+        assertEquals(4_095, preSieving.target());
+        assertEquals(2 * SieveSegments.SEGMENT_BITS - 1, new EratosthenesGenerator(2).residentLimit());
+    }
+
+    @Test
+    void stepsUntilTheWarmUp() {
+        var generator = generator();
+        var config = config();
+        config.setWarmUp(2_500);
+        var preSieving = new PreSieving(generator, config);
+
+        preSieving.step();
+        preSieving.step();
+        assertFalse(preSieving.warmedUp().isDone());
+        preSieving.step();
+        assertTrue(preSieving.warmedUp().isDone());
+        preSieving.step();
+
+        verify(generator).sieveSteps(0, 999);
+        verify(generator).sieveSteps(1_000, 1_999);
+        verify(generator).sieveSteps(2_000, 2_500);
+        verify(generator, times(3)).sieveSteps(anyInt(), anyInt());
+        verify(generator, never()).sieveSteps(anyInt());
+        verify(generator, never()).countUntil(anyInt());
+        assertEquals(2_500, preSieving.sieved());
+    }
+
+    @Test
+    void stepsSieveTheSegmentsOfTheGenerator() {
+        var generator = new NonBlockingEratosthenesGenerator();
+        var config = config();
+        config.setMemoryBytes(1 << 20);
+        config.setStep(3 * SieveSegments.SEGMENT_BITS);
+        config.setWarmUp(5 * SieveSegments.SEGMENT_BITS - 1);
+        var preSieving = new PreSieving(generator, config);
+
+        preSieving.step();
+        assertEquals(3, generator.segments().contiguous());
+        preSieving.step();
+        assertEquals(5, generator.segments().contiguous());
+        assertTrue(preSieving.warmedUp().isDone());
+        assertEquals(5, generator.segments().misses());
+        assertEquals(0, generator.segments().hits(), "The pre-sieved segments are not looked up again");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void throttlesDuringLiveCalls() {
+        var generator = generator();
+        var config = config();
+        config.setWarmUp(1_500);
+        var preSieving = new PreSieving(generator, config);
+
+        ServerCallHandler<Object, Object> handler = mock(ServerCallHandler.class);
+        when(handler.startCall(any(), any())).thenReturn(new ServerCall.Listener<>() {
+        });
+        var listener = preSieving.interceptCall(mock(ServerCall.class), new Metadata(), handler);
+
+        preSieving.step();
+        preSieving.step();
+        verify(generator).sieveSteps(0, 99);
+        verify(generator).sieveSteps(100, 199);
+        assertFalse(preSieving.warmedUp().isDone());
+
+        listener.onComplete();
+        preSieving.step();
+        preSieving.step();
+        verify(generator).sieveSteps(200, 1_199);
+        verify(generator).sieveSteps(1_200, 1_500);
+        assertTrue(preSieving.warmedUp().isDone());
+    }
+
+    @Test
+    void disabledIsReadyWithoutSieving() {
+        var generator = generator();
+        var config = config();
+        config.setEnabled(false);
+        config.setWarmUp(1_000_000);
+        var preSieving = new PreSieving(generator, config);
+
+        preSieving.start();
+        assertTrue(preSieving.warmedUp().isDone());
+        verify(generator, never()).sieveSteps(anyInt(), anyInt());
+    }
+}
@@ -1,6 +1,14 @@
 package com.szepep.dixa.primes.service;
 
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.DeltaVarint;
+import com.szepep.dixa.proto.Encoding;
+import com.szepep.dixa.proto.LongChunk;
+import com.szepep.dixa.proto.NthRequest;
+import com.szepep.dixa.proto.PrimalityRequest;
+import com.szepep.dixa.proto.RangeRequest;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
 import com.szepep.dixa.proto.Request;
 import com.szepep.dixa.proto.Response;
@@ -8,24 +16,42 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.health.v1.HealthGrpc;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
 
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import static com.szepep.dixa.primes.service.Utils.nextFreePort;
+import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest(
         properties = {
-                "grpc.port=${port}"
+                "grpc.port=${port}",
+                // the sieve is extended only by the requests
+                "generator.pre-sieving.enabled=false"
         }
 )
+@AutoConfigureMetrics
+@AutoConfigureWebTestClient
 @Slf4j
 class PrimesApplicationTests {
 
@@ -43,6 +69,15 @@ class PrimesApplicationTests {
     @Autowired
     private GrpcService.GrpcConfig config;
 
+    @Autowired
+    private Generator generator;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private WebTestClient client;
+
     @Test
     void happyPathTest() throws Exception {
         try (var s = new Stub(config.getPort())) {
@@ -55,6 +90,45 @@ class PrimesApplicationTests {
         }
     }
 
+    @Test
+    void readyAfterWarmUp() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var health = HealthGrpc.newBlockingStub(s.channel);
+            var ready = false;
+            for (int i = 0; i < 100 && !ready; ++i) {
+                ready = health.check(HealthCheckRequest.getDefaultInstance()).getStatus()
+                        == HealthCheckResponse.ServingStatus.SERVING;
+                if (!ready) Thread.sleep(100);
+            }
+            assertTrue(ready);
+        }
+        client.get().uri("/actuator/health/readiness").exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.status").isEqualTo("UP");
+    }
+
+    @Test
+    void metricsAreExposed() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            s.stub.get(Request.newBuilder().setNumber(100).build()).blockLast();
+        }
+
+        assertTrue(registry.get("primes.emitted").tag("method", "get").summary().totalAmount() >= 25);
+        assertTrue(registry.get("primes.sieve.max").gauge().value() >= 100);
+        assertTrue(registry.get("grpc.server.processing.duration").tag("method", "get").timer().count() > 0);
+
+        client.get()
+                .uri("/actuator/prometheus")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .value(body -> {
+                    assertTrue(body.contains("primes_sieve_max"), "Sieve gauge");
+                    assertTrue(body.contains("primes_sieve_wait_seconds"), "Sieve wait timer");
+                    assertTrue(body.contains("primes_emitted_count{method=\"get\""), "Emitted primes");
+                });
+    }
+
     @Test
     void negativeInput() throws Exception {
         try (var s = new Stub(config.getPort())) {
@@ -68,6 +142,160 @@ class PrimesApplicationTests {
         }
     }
 
+    @Test
+    void chunksTest() throws Exception {
+        var n = 1_000_000;
+        var expected = new EratosthenesGenerator().primesUntil(n).collect(toList());
+
+        try (var s = new Stub(config.getPort())) {
+            for (var encoding : List.of(Encoding.PACKED, Encoding.DELTA_VARINT)) {
+                var chunks = s.stub.getChunks(ChunkRequest.newBuilder().setNumber(n).setEncoding(encoding).build())
+                        .collectList()
+                        .block();
+
+                assertEquals((expected.size() + PrimeServiceImpl.CHUNK_SIZE - 1) / PrimeServiceImpl.CHUNK_SIZE,
+                        chunks.size());
+                var primes = chunks.stream()
+                        .flatMap(c -> encoding == Encoding.PACKED
+                                ? c.getPrimesList().stream()
+                                : Ints.asList(DeltaVarint.decode(c.getDeltas())).stream())
+                        .collect(toList());
+                assertEquals(expected, primes, "Different result for " + encoding);
+            }
+        }
+    }
+
+    @Test
+    void chunksFromTheLowerBound() throws Exception {
+        var from = 500_000;
+        var n = 1_000_000;
+        var expected = new EratosthenesGenerator().primesUntil(n).filter(p -> p >= from).collect(toList());
+
+        try (var s = new Stub(config.getPort())) {
+            var request = ChunkRequest.newBuilder().setFrom(from).setNumber(n).setEncoding(Encoding.DELTA_VARINT);
+            var primes = s.stub.getChunks(request.build())
+                    .flatMapIterable(c -> Ints.asList(DeltaVarint.decode(c.getDeltas())))
+                    .collectList()
+                    .block();
+
+            assertEquals(expected, primes);
+        }
+    }
+
+    @Test
+    void chunksNegativeInput() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var e = assertThrows(StatusRuntimeException.class, () ->
+                    s.stub.getChunks(ChunkRequest.newBuilder().setNumber(-10).build())
+                            .collectList()
+                            .block()
+            );
+            assertEquals(Status.INVALID_ARGUMENT.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    void rangeTest() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var request = RangeRequest.newBuilder().setFrom(1_000_000_000L).setTo(1_000_000_100L).build();
+            var primes = s.stub.getRange(request)
+                    .flatMapIterable(LongChunk::getPrimesList)
+                    .collectList()
+                    .block();
+
+            assertEquals(Lists.newArrayList(1_000_000_007L, 1_000_000_009L, 1_000_000_021L, 1_000_000_033L,
+                    1_000_000_087L, 1_000_000_093L, 1_000_000_097L), primes);
+        }
+    }
+
+    @Test
+    void rangeInvalidInput() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var e = assertThrows(StatusRuntimeException.class, () ->
+                    s.stub.getRange(RangeRequest.newBuilder().setFrom(100).setTo(10).build())
+                            .collectList()
+                            .block()
+            );
+            assertEquals(Status.INVALID_ARGUMENT.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    void countingQueriesTest() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var count = s.stub.getCount(Request.newBuilder().setNumber(100).build()).block();
+            var nth = s.stub.getNth(NthRequest.newBuilder().setN(25).build()).block();
+            var last = s.stub.getLastPrime(Request.newBuilder().setNumber(100).build()).block();
+            var none = s.stub.getLastPrime(Request.newBuilder().setNumber(1).build()).block();
+
+            assertEquals(25, count.getCount());
+            assertEquals(97, nth.getPrime());
+            assertEquals(97, last.getPrime());
+            assertFalse(none.hasPrime());
+        }
+    }
+
+    @Test
+    void expiredDeadlineStopsTheSieve() throws Exception {
+        var segments = ((EratosthenesGenerator) generator).segments();
+        try (var s = new Stub(config.getPort())) {
+            var e = assertThrows(StatusRuntimeException.class, () -> s.stub
+                    .withDeadlineAfter(100, TimeUnit.MILLISECONDS)
+                    .getCount(Request.newBuilder().setNumber(Integer.MAX_VALUE).build())
+                    .block()
+            );
+            assertEquals(Status.DEADLINE_EXCEEDED.getCode(), e.getStatus().getCode());
+        }
+
+        // the step in progress is finished
+        Thread.sleep(500);
+        var sieved = segments.contiguous();
+        Thread.sleep(500);
+        assertEquals(sieved, segments.contiguous(), "The sieve is not extended after the deadline");
+        assertTrue(sieved < SieveSegments.SEGMENT_COUNT);
+    }
+
+    @Test
+    void countingQueriesInvalidInput() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var e = assertThrows(StatusRuntimeException.class, () ->
+                    s.stub.getNth(NthRequest.newBuilder().setN(0).build()).block()
+            );
+            assertEquals(Status.INVALID_ARGUMENT.getCode(), e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    void primalityTest() throws Exception {
+        try (var s = new Stub(config.getPort())) {
+            var request = PrimalityRequest.newBuilder()
+                    .addAllNumbers(List.of(-7L, 0L, 1L, 2L, 9L, 97L, 4294967311L, 4294967313L))
+                    .build();
+            var response = s.stub.isPrime(request).block();
+
+            assertEquals(List.of(false, false, false, true, false, true, true, false), response.getPrimeList());
+        }
+    }
+
+    @Test
+    void largePrimalityBatchMatchesTheSingleTests() throws Exception {
+        var random = new Random(42);
+        // above the parallel threshold, sieved and not sieved ints, negative and 64-bit numbers
+        var numbers = IntStream.range(0, 50_000)
+                .mapToLong(i -> i % 2 == 0 ? random.nextInt(10_000_000) : random.nextLong())
+                .boxed()
+                .collect(toList());
+        var expected = numbers.stream()
+                .map(n -> n > 1 && BigInteger.valueOf(n).isProbablePrime(50))
+                .collect(toList());
+
+        try (var s = new Stub(config.getPort())) {
+            var response = s.stub.isPrime(PrimalityRequest.newBuilder().addAllNumbers(numbers).build()).block();
+
+            assertEquals(expected, response.getPrimeList());
+        }
+    }
+
     private static class Stub implements AutoCloseable {
 
         public final ReactorServiceGrpc.ReactorServiceStub stub;
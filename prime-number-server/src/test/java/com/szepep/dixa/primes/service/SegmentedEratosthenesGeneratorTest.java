@@ -0,0 +1,324 @@
+package com.szepep.dixa.primes.service;
+
+import com.google.common.base.Stopwatch;
+import lombok.extern.slf4j.Slf4j;
+import org.assertj.core.util.Lists;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class SegmentedEratosthenesGeneratorTest {
+
+    private static final int SMALL_SEGMENT_BYTES = 1024;
+    private static final int SMALL_SEGMENT_SPAN = 2 * SMALL_SEGMENT_BYTES * Byte.SIZE;
+
+    @Test
+    void generateFirstFewPrimes() {
+        var generator = new SegmentedEratosthenesGenerator();
+
+        assertEquals(Lists.list(2, 3, 5, 7), generator.primesUntil(10).collect(toList()));
+        assertEquals(Lists.list(2, 3, 5, 7, 11, 13), generator.primesUntil(13).collect(toList()));
+    }
+
+    @Test
+    void noPrimesBelowTwo() {
+        var generator = new SegmentedEratosthenesGenerator();
+
+        assertEquals(0, generator.primesUntil(0).count());
+        assertEquals(0, generator.primesUntil(1).count());
+        assertEquals(Lists.list(2), generator.primesUntil(2).collect(toList()));
+    }
+
+    @Test
+    void negativeNumberIsRejected() {
+        var generator = new SegmentedEratosthenesGenerator();
+
+        assertThrows(IllegalArgumentException.class, () -> generator.primesUntil(-1));
+    }
+
+    @Test
+    void invalidSegmentSizeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new SegmentedEratosthenesGenerator(1000));
+        assertThrows(IllegalArgumentException.class, () -> new SegmentedEratosthenesGenerator(512));
+    }
+
+    @Test
+    void sameResultAsEratosthenesAroundSegmentBoundaries() {
+        var expected = new EratosthenesGenerator();
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES);
+
+        IntStream.of(1, 2, 3, 4)
+                .flatMap(i -> IntStream.of(i * SMALL_SEGMENT_SPAN - 1, i * SMALL_SEGMENT_SPAN, i * SMALL_SEGMENT_SPAN + 1))
+                .forEach(n -> assertEquals(
+                        expected.primesUntil(n).collect(toList()),
+                        generator.primesUntil(n).collect(toList()),
+                        "Different result for " + n));
+    }
+
+    @Test
+    void sameResultAsEratosthenesForLargeNumber() {
+        var n = 2_000_000;
+        var expected = new EratosthenesGenerator().primesUntil(n).collect(toList());
+
+        assertEquals(expected, new SegmentedEratosthenesGenerator().primesUntil(n).collect(toList()));
+        assertEquals(expected, new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES).primesUntil(n).collect(toList()));
+    }
+
+    @Test
+    void parallelModeHasSameResult() {
+        var n = 2_000_000;
+        var expected = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES).primesUntil(n).collect(toList());
+
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 4);
+        try {
+            assertEquals(expected, generator.primesUntil(n).collect(toList()));
+            assertEquals(expected.subList(0, 100), generator.primesUntil(expected.get(99)).collect(toList()));
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    void parallelModeSchedulesWholeRequest() {
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 4);
+        try {
+            generator.primesUntil(10).collect(toList());
+            assertEquals(1, generator.sievedSegments());
+
+            var firstOfSecondSegment = generator.primesUntil(10 * SMALL_SEGMENT_SPAN - 1)
+                    .filter(p -> p > SMALL_SEGMENT_SPAN)
+                    .findFirst();
+            assertTrue(firstOfSecondSegment.isPresent());
+            await(() -> generator.sievedSegments() == 10);
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    void parallelModeSievesWindowAheadOfTheConsumer() throws InterruptedException {
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 2);
+        try {
+            var first = generator.primeChunksUntil(1000 * SMALL_SEGMENT_SPAN).findFirst();
+            assertTrue(first.isPresent());
+
+            await(() -> generator.sievedSegments() == 8);
+            Thread.sleep(100);
+            assertEquals(8, generator.sievedSegments(), "Only the window is sieved for an abandoned request");
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    void parallelModeCountsAfterAllSegmentsArePublished() {
+        assertEquals(348_513, new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 8).countUntil(5_000_000));
+    }
+
+    @Test
+    void parallelModeFindsNthPrimeAfterAllSegmentsArePublished() {
+        assertEquals(4_256_233, new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 8).nth(300_000));
+    }
+
+    @Test
+    void parallelModeFindsLastPrimeAfterAllSegmentsArePublished() {
+        var expected = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES).lastPrimeUntil(5_000_000);
+        assertEquals(expected, new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 8).lastPrimeUntil(5_000_000));
+    }
+
+    @Test
+    void failedSegmentIsSievedAgain() {
+        failedSegmentIsSievedAgain(1);
+    }
+
+    @Test
+    void failedSegmentIsSievedAgainInParallelMode() {
+        failedSegmentIsSievedAgain(4);
+    }
+
+    private static void failedSegmentIsSievedAgain(int parallelism) {
+        var store = new FailingSegmentStore(new HeapSegmentStore(), 3);
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, parallelism, store);
+        try {
+            var n = 10 * SMALL_SEGMENT_SPAN - 1;
+            var expected = new EratosthenesGenerator().primesUntil(n).collect(toList());
+
+            assertThrows(CompletionException.class, () -> generator.primesUntil(n).collect(toList()));
+            assertEquals(3, generator.sievedSegments(), "The segments before the failed one are published");
+
+            store.heal();
+            assertEquals(expected, generator.primesUntil(n).collect(toList()));
+            assertEquals(10, generator.sievedSegments());
+            assertEquals(expected.size(), generator.countUntil(n));
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    void failedSegmentBeforeTheLowerBoundFailsTheRequest() {
+        var store = new FailingSegmentStore(new HeapSegmentStore(), 3);
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 1, store);
+        var from = 5 * SMALL_SEGMENT_SPAN;
+        var n = 10 * SMALL_SEGMENT_SPAN - 1;
+
+        var e = assertThrows(CompletionException.class, () -> generator.sieveSteps(from, n).sum());
+        assertTrue(e.getCause() instanceof UncheckedIOException, "The failure of the store is reported");
+        assertEquals(3, generator.sievedSegments(), "The segments before the failed one are published");
+
+        store.heal();
+        var expected = new EratosthenesGenerator().primesUntil(n)
+                .filter(p -> p >= from)
+                .collect(toList());
+        assertEquals(expected, generator.primeChunksFrom(from, n)
+                .flatMapToInt(IntStream::of)
+                .boxed()
+                .collect(toList()));
+    }
+
+    @Test
+    void chunksAboveThePublishedSegmentsSieveOnlyTheirSegments() {
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES);
+        var from = 5 * SMALL_SEGMENT_SPAN + 1;
+        var n = 7 * SMALL_SEGMENT_SPAN - 1;
+        var expected = new EratosthenesGenerator().primesUntil(n)
+                .filter(p -> p >= from)
+                .collect(toList());
+
+        assertEquals(expected, generator.primeChunksFrom(from, n)
+                .flatMapToInt(IntStream::of)
+                .boxed()
+                .collect(toList()));
+        assertEquals(0, generator.sievedSegments(), "The segments before the range are not sieved");
+
+        generator.primesUntil(n).collect(toList());
+        assertEquals(7, generator.sievedSegments());
+        assertEquals(expected, generator.primeChunksFrom(from, n)
+                .flatMapToInt(IntStream::of)
+                .boxed()
+                .collect(toList()));
+    }
+
+    @Test
+    void largestIntegerIsPrime() {
+        var generator = new SegmentedEratosthenesGenerator();
+
+        var primes = generator.primesUntil(Integer.MAX_VALUE)
+                .dropWhile(p -> p < Integer.MAX_VALUE - 100)
+                .collect(toList());
+
+        var expected = IntStream.rangeClosed(Integer.MAX_VALUE - 100, Integer.MAX_VALUE)
+                .filter(i -> BigInteger.valueOf(i).isProbablePrime(50))
+                .boxed()
+                .collect(toList());
+        assertEquals(expected, primes);
+        assertEquals(Integer.MAX_VALUE, primes.get(primes.size() - 1));
+
+        assertEquals(PrimeCounting.PRIMES_IN_INT_RANGE, generator.countUntil(Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, generator.nth(PrimeCounting.PRIMES_IN_INT_RANGE));
+        assertEquals(OptionalInt.of(Integer.MAX_VALUE), generator.lastPrimeUntil(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void onlyRequiredSegmentsAreSieved() {
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES);
+
+        generator.primesUntil(10).collect(toList());
+        assertEquals(1, generator.sievedSegments());
+
+        generator.primesUntil(10 * SMALL_SEGMENT_SPAN - 1).collect(toList());
+        assertEquals(10, generator.sievedSegments());
+
+        generator.primesUntil(10).collect(toList());
+        assertEquals(10, generator.sievedSegments(), "Already sieved segments are reused");
+    }
+
+    @Test
+    void parallelRunsAreCorrect() {
+        parallelRunsAreCorrect(new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES));
+    }
+
+    @Test
+    void parallelRunsAreCorrectInParallelMode() {
+        var generator = new SegmentedEratosthenesGenerator(SMALL_SEGMENT_BYTES, 4);
+        try {
+            parallelRunsAreCorrect(generator);
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    @Test
+    @Disabled("Long running test")
+    public void performanceComparison() {
+        var n = 100_000_000;
+        var runs = 5;
+
+        long eratTime = 0;
+        long segmTime = 0;
+        for (int j = 0; j < runs; ++j) {
+            var erat = new EratosthenesGenerator();
+            var segm = new SegmentedEratosthenesGenerator();
+
+            eratTime += measure(() -> erat.primeChunksUntil(n).forEach(chunk -> {/* do nothing*/}));
+            segmTime += measure(() -> segm.primeChunksUntil(n).forEach(chunk -> {/* do nothing*/}));
+        }
+
+        log.info("\n" +
+                        "Cold request until {}\n" +
+                        "EratosthenesGenerator: {}ms\n" +
+                        "SegmentedEratosthenesGenerator: {}ms",
+                n, eratTime / runs, segmTime / runs);
+    }
+
+    private static long measure(Runnable block) {
+        var sw = Stopwatch.createStarted();
+        block.run();
+        return sw.elapsed(TimeUnit.MILLISECONDS);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void parallelRunsAreCorrect(SegmentedEratosthenesGenerator sharedGenerator) {
+
+        var runs = 20;
+
+        var executor = Executors.newFixedThreadPool(runs);
+        var futures = IntStream.range(0, runs)
+                .map(i -> (i + 1) * 10_000)
+                .mapToObj(i -> executor.submit(() -> {
+                    var shared = sharedGenerator.primesUntil(i).collect(toList());
+                    var notShared = new EratosthenesGenerator().primesUntil(i).collect(toList());
+                    return shared.equals(notShared);
+                }))
+                .collect(toList());
+
+        futures.forEach(f -> {
+            try {
+                assertTrue(f.get());
+            } catch (InterruptedException | ExecutionException e) {
+                fail(e.getMessage());
+            }
+        });
+        executor.shutdown();
+    }
+}
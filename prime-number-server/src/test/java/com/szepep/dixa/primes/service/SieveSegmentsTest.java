@@ -0,0 +1,188 @@
+package com.szepep.dixa.primes.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SieveSegmentsTest {
+
+    private static int[] expected(int segment) {
+        long low = (long) segment * SieveSegments.SEGMENT_BITS;
+        return WindowSieve.primesBetween(low, low + SieveSegments.SEGMENT_BITS - 1)
+                .mapToInt(p -> (int) p)
+                .toArray();
+    }
+
+    @Test
+    void segmentsAreSievedIndependently() {
+        for (int s : new int[]{0, 1, 2, 1000, SieveSegments.SEGMENT_COUNT - 1}) {
+            var primes = Sieve.primesOf(LongBuffer.wrap(SieveSegments.sieve(s)), SieveSegments.SEGMENT_BITS,
+                    (long) s * SieveSegments.SEGMENT_BITS, false);
+            assertArrayEquals(expected(s), primes, "Segment " + s);
+        }
+    }
+
+    @Test
+    void firstPublishedSegmentWins() {
+        var segments = new SieveSegments();
+        assertNull(segments.get(3));
+        var first = segments.publish(3, SieveSegments.sieve(3));
+        assertSame(first, segments.publish(3, SieveSegments.sieve(3)));
+        assertSame(first, segments.get(3));
+        assertEquals(1, segments.misses(), "The lost publish is not a miss");
+        assertEquals(1, segments.hits());
+    }
+
+    @Test
+    void lookupsAreCountedOnce() {
+        var generator = new EratosthenesGenerator();
+        var segments = generator.segments();
+
+        generator.countUntil(3 * SieveSegments.SEGMENT_BITS - 1);
+        assertEquals(3, segments.misses());
+        assertEquals(0, segments.hits(), "The probes of the sieving are not counted");
+
+        generator.primesUntil(3 * SieveSegments.SEGMENT_BITS - 1).collect(toList());
+        assertTrue(generator.isPrime(7));
+        generator.countUntil(SieveSegments.SEGMENT_BITS - 1);
+        assertFalse(generator.isPrime(10L * SieveSegments.SEGMENT_BITS));
+        assertEquals(3, segments.misses());
+        assertEquals(5, segments.hits());
+
+        var nonBlocking = new NonBlockingEratosthenesGenerator();
+        nonBlocking.sieveSteps(3 * SieveSegments.SEGMENT_BITS - 1).forEach(step -> { });
+        assertEquals(3, nonBlocking.segments().misses());
+        assertEquals(0, nonBlocking.segments().hits());
+        nonBlocking.primesUntil(3 * SieveSegments.SEGMENT_BITS - 1).collect(toList());
+        nonBlocking.sieveStepsAsync(SieveSegments.SEGMENT_BITS - 1).forEach(CompletableFuture::join);
+        assertEquals(3, nonBlocking.segments().misses());
+        assertEquals(4, nonBlocking.segments().hits());
+    }
+
+    @Test
+    void rankCoversSegmentsPublishedWithoutGap() {
+        var segments = new SieveSegments();
+        segments.publish(1, SieveSegments.sieve(1));
+        segments.publish(2, SieveSegments.sieve(2));
+        assertEquals(0, segments.contiguous());
+
+        segments.publish(0, SieveSegments.sieve(0));
+        assertEquals(3, segments.contiguous());
+        assertEquals(0, segments.rank(0));
+        assertEquals(expected(0).length, segments.rank(1));
+        assertEquals(expected(0).length + expected(1).length + expected(2).length, segments.rank(3));
+    }
+
+    @Test
+    void coldSegmentsAreEvicted() {
+        var segments = new SieveSegments(3);
+        for (int s = 0; s < 3; ++s) segments.publish(s, SieveSegments.sieve(s));
+        assertNotNull(segments.get(0));
+
+        segments.publish(3, SieveSegments.sieve(3));
+        assertEquals(3, segments.resident());
+        assertEquals(1, segments.evictions());
+        assertNotNull(segments.get(0), "The referenced segment got second chance");
+        assertNull(segments.get(1));
+        assertNotNull(segments.get(3));
+
+        assertEquals(4, segments.contiguous(), "The rank is kept after eviction");
+        assertEquals(expected(0).length + expected(1).length + expected(2).length, segments.rank(3));
+
+        segments.publish(1, SieveSegments.sieve(1));
+        assertEquals(3, segments.resident());
+        assertEquals(5, segments.misses());
+        assertEquals(2, segments.evictions());
+        assertEquals(3, segments.hits());
+    }
+
+    @Test
+    void memoryIsConvertedToSegments() {
+        assertEquals(SieveSegments.SEGMENT_COUNT, SieveSegments.segmentsOf(0));
+        assertEquals(2, SieveSegments.segmentsOf(1));
+        assertEquals(16, SieveSegments.segmentsOf(16L * SieveSegments.SEGMENT_BYTES));
+        assertEquals(SieveSegments.SEGMENT_COUNT, SieveSegments.segmentsOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void boundedGeneratorKeepsTheBound() {
+        var generator = new EratosthenesGenerator(4);
+        var expected = new EratosthenesGenerator();
+
+        for (int i = 0; i < 3; ++i) assertEquals(expected.countUntil(5_000_000), generator.countUntil(5_000_000));
+        assertEquals(expected.nth(100_000), generator.nth(100_000));
+        assertEquals(expected.lastPrimeUntil(3_000_000), generator.lastPrimeUntil(3_000_000));
+        assertEquals(4, generator.segments().resident());
+        assertTrue(generator.segments().evictions() > 0);
+    }
+
+    @Test
+    void sieveIsReported() {
+        var registry = new SimpleMeterRegistry();
+        var generator = new EratosthenesGenerator(4);
+        generator.bindTo(registry);
+        assertEquals(-1, registry.get("primes.sieve.max").gauge().value());
+
+        generator.countUntil(5 * SieveSegments.SEGMENT_BITS - 1);
+        assertEquals(5 * SieveSegments.SEGMENT_BITS - 1, registry.get("primes.sieve.max").gauge().value());
+        assertEquals(4 * SieveSegments.SEGMENT_BYTES, registry.get("primes.sieve.memory").gauge().value());
+        assertEquals(5, registry.get("primes.sieve.segments").tag("result", "miss").functionCounter().count());
+        assertEquals(1, registry.get("primes.sieve.evictions").functionCounter().count());
+        assertEquals(5, registry.get("primes.sieve.extension").timer().count());
+        assertEquals(5, registry.get("primes.sieve.wait").timer().count());
+    }
+
+    @Test
+    void concurrentPublishers() throws Exception {
+        var segments = new SieveSegments();
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for (int t = 0; t < 4; ++t) {
+                int offset = t;
+                futures.add(CompletableFuture.runAsync(() -> IntStream.range(0, 64)
+                        .map(i -> (i * 7 + offset) % 64)
+                        .forEach(s -> segments.publish(s, SieveSegments.sieve(s))), executor));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(64, segments.contiguous());
+        var primes = IntStream.range(0, 64)
+                .flatMap(s -> IntStream.of(Sieve.primesOf(segments.get(s), SieveSegments.SEGMENT_BITS,
+                        (long) s * SieveSegments.SEGMENT_BITS, false)))
+                .boxed()
+                .collect(toList());
+        assertEquals(primes.size(), segments.rank(64));
+        assertEquals(new EratosthenesGenerator().primesUntil(64 * SieveSegments.SEGMENT_BITS - 1).collect(toList()),
+                primes);
+    }
+
+    @Test
+    void sievedRangeIsReadWhileTheSieveIsExtended() throws Exception {
+        var generator = new EratosthenesGenerator();
+        generator.countUntil(1_000_000);
+
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var large = executor.submit(() -> generator.countUntil(Integer.MAX_VALUE / 4));
+            // readers of the sieved range do not wait for the extension
+            for (int i = 0; i < 1_000; ++i) assertEquals(78_498, generator.countUntil(1_000_000));
+            assertEquals(78_498, generator.primesUntil(1_000_000).count());
+            large.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SieveTest {
+
+    @Test
+    void basePrimesAreTheOddPrimesUntilTheSquareRootOfTheIntRange() {
+        assertArrayEquals(new int[]{3, 5, 7, 11, 13}, Sieve.oddPrimesUntil(13));
+        assertEquals(3, Sieve.BASE_PRIMES[0]);
+        assertEquals(46_337, Sieve.BASE_PRIMES[Sieve.BASE_PRIMES.length - 1]);
+    }
+
+    @Test
+    void bothLayoutsHaveTheSamePrimes() {
+        long low = 1_000_000;
+        int bits = 1 << 12;
+
+        var all = new long[bits / Long.SIZE];
+        Arrays.fill(all, 0xAAAAAAAAAAAAAAAAL);
+        Sieve.crossOff(all, low, bits, false, Sieve.BASE_PRIMES);
+
+        var odd = new long[bits / 2 / Long.SIZE];
+        Arrays.fill(odd, -1L);
+        Sieve.crossOff(odd, low + 1, bits / 2, true, Sieve.BASE_PRIMES);
+
+        var expected = WindowSieve.primesBetween(low, low + bits - 1).toArray();
+        assertArrayEquals(expected, Sieve.longPrimesOf(LongBuffer.wrap(all), bits, low, false));
+        assertArrayEquals(expected, Sieve.longPrimesOf(LongBuffer.wrap(odd), bits / 2, low + 1, true));
+    }
+
+    @Test
+    void primeWithOneMultipleInTheBitmap() {
+        var words = new long[1];
+        Arrays.fill(words, -1L);
+        // 10007 * 10007 is the only odd multiple of 10007 among the 64 odd numbers
+        long low = 10_007L * 10_007 - 2;
+        Sieve.crossOff(words, low, 64, true, 10_007);
+
+        assertFalse(Sieve.isSet(LongBuffer.wrap(words), 1));
+        assertEquals(63, Sieve.count(LongBuffer.wrap(words), 64));
+    }
+
+    @Test
+    void bitQueries() {
+        var words = LongBuffer.wrap(SieveSegments.sieve(0));
+
+        assertEquals(0, Sieve.count(words, 2));
+        assertEquals(4, Sieve.count(words, 11));
+        assertArrayEquals(new int[]{2, 3, 5, 7}, Sieve.primesOf(words, 11, 0, false));
+        assertEquals(2, Sieve.select(words, 1));
+        assertEquals(97, Sieve.select(words, 25));
+        assertEquals(-1, Sieve.select(words, SieveSegments.SEGMENT_BITS));
+        assertEquals(-1, Sieve.lastSetBit(words, 1));
+        assertEquals(61, Sieve.lastSetBit(words, 66));
+        assertEquals(67, Sieve.lastSetBit(words, 67));
+        assertTrue(Sieve.isSet(words, 65_521));
+        assertFalse(Sieve.isSet(words, 65_535));
+    }
+}
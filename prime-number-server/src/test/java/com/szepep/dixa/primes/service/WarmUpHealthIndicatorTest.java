@@ -0,0 +1,23 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WarmUpHealthIndicatorTest {
+
+    @Test
+    void outOfServiceUntilWarmedUp() {
+        var config = new PreSieving.PreSievingConfig();
+        config.setWarmUp(100_000);
+        var preSieving = new PreSieving(new EratosthenesGenerator(), config);
+        var indicator = new WarmUpHealthIndicator(preSieving);
+
+        assertEquals(Status.OUT_OF_SERVICE, indicator.health().getStatus());
+
+        preSieving.step();
+        assertEquals(Status.UP, indicator.health().getStatus());
+        assertEquals(100_000, indicator.health().getDetails().get("sieved"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.szepep.dixa.primes.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.stream.LongStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WindowSieveTest {
+
+    private static long[] expected(long from, long to) {
+        return LongStream.rangeClosed(from, to)
+                .filter(i -> BigInteger.valueOf(i).isProbablePrime(50))
+                .toArray();
+    }
+
+    @Test
+    void sameResultAsEratosthenesFromZero() {
+        var n = 3_000_000;
+        var expected = new EratosthenesGenerator().primesUntil(n).map(Integer::longValue).collect(toList());
+
+        assertEquals(expected, WindowSieve.primesBetween(0, n).boxed().collect(toList()));
+    }
+
+    @Test
+    void smallRanges() {
+        assertArrayEquals(new long[0], WindowSieve.primesBetween(0, 1).toArray());
+        assertArrayEquals(new long[]{2}, WindowSieve.primesBetween(2, 2).toArray());
+        assertArrayEquals(new long[]{3}, WindowSieve.primesBetween(3, 4).toArray());
+        assertArrayEquals(new long[]{11, 13}, WindowSieve.primesBetween(8, 16).toArray());
+        assertArrayEquals(new long[0], WindowSieve.primesBetween(24, 28).toArray());
+        assertArrayEquals(new long[0], WindowSieve.primesBetween(10, 5).toArray());
+    }
+
+    @Test
+    void windowAboveIntegerRange() {
+        var from = Integer.MAX_VALUE - 1_000L;
+        var to = Integer.MAX_VALUE + 100_000L;
+
+        assertArrayEquals(expected(from, to), WindowSieve.primesBetween(from, to).toArray());
+    }
+
+    @Test
+    void windowFarFromZero() {
+        var from = 1_000_000_000_000L;
+        var to = from + 20_000;
+
+        assertArrayEquals(expected(from, to), WindowSieve.primesBetween(from, to).toArray());
+    }
+
+    @Test
+    void windowAtTheQuadrillion() {
+        var from = 1_000_000_000_000_000L;
+        var to = from + 2_000;
+
+        assertArrayEquals(expected(from, to), WindowSieve.primesBetween(from, to).toArray());
+    }
+
+    @Test
+    void farWindowDoesNotCacheAllBasePrimes() {
+        var from = 1_000_000_000_000_000_000L;
+        var to = from + 1_000;
+
+        assertArrayEquals(expected(from, to), WindowSieve.primesBetween(from, to).toArray());
+        assertTrue(WindowSieve.cachedBaseLimit() <= WindowSieve.CACHED_BASE_LIMIT,
+                "The base primes until 10^9 are not kept");
+    }
+
+    @Test
+    void windowAtTheLargestNumber() {
+        var to = WindowSieve.MAX_NUMBER;
+        var from = to - 1_000;
+
+        assertArrayEquals(expected(from, to), WindowSieve.primesBetween(from, to).toArray());
+    }
+
+    @Test
+    void chunksAreWindowsOfTheRange() {
+        var from = 1_000_000_000L;
+        var to = from + 1_000_000;
+
+        var chunks = WindowSieve.chunksBetween(from, to).collect(toList());
+
+        assertEquals(2, chunks.size(), "One chunk per 2^19 numbers");
+        assertArrayEquals(expected(from, to), chunks.stream().flatMapToLong(LongStream::of).toArray());
+    }
+
+    @Test
+    void invalidRangeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> WindowSieve.primesBetween(-1, 10));
+        assertThrows(IllegalArgumentException.class, () -> WindowSieve.primesBetween(0, WindowSieve.MAX_NUMBER + 1));
+    }
+}
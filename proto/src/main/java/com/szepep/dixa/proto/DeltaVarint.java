@@ -0,0 +1,78 @@
+package com.szepep.dixa.proto;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Codec of the {@link Encoding#DELTA_VARINT} chunks.
+ * <p>
+ * The chunk is self-contained: the first prime is followed by the gaps between the consecutive primes, every value is
+ * an unsigned varint. Gaps below 128 take one byte, the largest prime gap in the int range (292) takes two.
+ */
+public final class DeltaVarint {
+
+    private DeltaVarint() {
+    }
+
+    /**
+     * @param primes Ascending primes.
+     * @return The encoded chunk.
+     */
+    public static ByteString encode(int[] primes) {
+        int size = 0;
+        int previous = 0;
+        for (int p : primes) {
+            size += CodedOutputStream.computeUInt32SizeNoTag(p - previous);
+            previous = p;
+        }
+
+        var bytes = new byte[size];
+        var out = CodedOutputStream.newInstance(bytes);
+        try {
+            previous = 0;
+            for (int p : primes) {
+                out.writeUInt32NoTag(p - previous);
+                previous = p;
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot encode the chunk", e);
+        }
+        return ByteString.copyFrom(bytes);
+    }
+
+    /**
+     * @param deltas The encoded chunk.
+     * @return The ascending primes of the chunk.
+     * @throws IllegalArgumentException if the chunk is malformed.
+     */
+    public static int[] decode(ByteString deltas) throws IllegalArgumentException {
+        // every varint ends with a byte without the continuation bit
+        int count = 0;
+        for (int i = 0; i < deltas.size(); ++i)
+            if (deltas.byteAt(i) >= 0) ++count;
+
+        var primes = new int[count];
+        int value = 0;
+        int shift = 0;
+        int idx = 0;
+        for (int i = 0; i < deltas.size(); ++i) {
+            byte b = deltas.byteAt(i);
+            if (shift > 28) throw new IllegalArgumentException("Malformed varint at " + i);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                primes[idx] = (idx == 0 ? 0 : primes[idx - 1]) + value;
+                ++idx;
+                value = 0;
+                shift = 0;
+            } else {
+                shift += 7;
+            }
+        }
+        if (shift != 0) throw new IllegalArgumentException("Truncated varint");
+        return primes;
+    }
+}
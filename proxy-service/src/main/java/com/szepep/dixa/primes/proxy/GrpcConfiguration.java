@@ -1,5 +1,9 @@
 package com.szepep.dixa.primes.proxy;
 
+import com.google.common.net.HostAndPort;
+import com.szepep.dixa.primes.proxy.balancing.BalancedChannel;
+import com.szepep.dixa.primes.proxy.balancing.Balancing;
+import com.szepep.dixa.proto.Encoding;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
@@ -9,33 +13,92 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Configuration(proxyBeanMethods = false)
 @Slf4j
 public class GrpcConfiguration {
 
+    /**
+     * The first retry of a host name not resolved at the start.
+     */
+    private static final Duration UNRESOLVED_RETRY = Duration.ofSeconds(1);
+
     @Bean
     public ReactorServiceGrpc.ReactorServiceStub reactorServiceStub(GrpcConfig config) {
-        ManagedChannel channel = ManagedChannelBuilder
-                .forAddress(config.getHost(), config.getPort())
-                .usePlaintext()
-                .build();
+        List<String> targets;
+        try {
+            targets = targets(config);
+        } catch (IllegalStateException e) {
+            // not fatal, the backends are resolved again in the background
+            log.warn("Resolving {} failed, no backend until it is resolved", config.getHost(), e);
+            targets = List.of();
+        }
+        var channel = new BalancedChannel(targets, GrpcConfiguration::channel, config);
 
+        ScheduledExecutorService refresh = null;
+        if (config.getBackends().isEmpty() && config.isResolveAll()) {
+            refresh = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "grpc-dns-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = config.getDnsRefresh().toMillis();
+            long delay = targets.isEmpty() ? Math.min(period, UNRESOLVED_RETRY.toMillis()) : period;
+            refresh.scheduleWithFixedDelay(() -> {
+                try {
+                    channel.update(targets(config));
+                } catch (RuntimeException e) {
+                    log.warn("Resolving {} failed, the backends are kept", config.getHost(), e);
+                }
+            }, delay, period, TimeUnit.MILLISECONDS);
+        }
+
+        var dnsRefresh = refresh;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                channel.shutdown().awaitTermination(1, TimeUnit.SECONDS);
-                log.info("gRPC client closed");
-            } catch (InterruptedException e) {
-                log.error("Interrupted", e);
-            }
+            if (dnsRefresh != null) dnsRefresh.shutdownNow();
+            channel.shutdown();
+            log.info("gRPC client closed");
         }));
 
         ReactorServiceGrpc.ReactorServiceStub stub = ReactorServiceGrpc.newReactorStub(channel);
-        log.info("gRPC client started {}:{}", config.getHost(), config.getPort());
+        log.info("gRPC client started {}, {} balancing", targets, config.getBalancing());
         return stub;
     }
 
+    /**
+     * The static list of backends, all addresses of the host name or the host name itself resolved by gRPC.
+     */
+    static List<String> targets(GrpcConfig config) {
+        if (!config.getBackends().isEmpty()) return config.getBackends();
+        if (!config.isResolveAll()) {
+            return List.of(HostAndPort.fromParts(config.getHost(), config.getPort()).toString());
+        }
+        try {
+            return Arrays.stream(InetAddress.getAllByName(config.getHost()))
+                    .map(address -> HostAndPort.fromParts(address.getHostAddress(), config.getPort()).toString())
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Cannot resolve " + config.getHost(), e);
+        }
+    }
+
+    private static ManagedChannel channel(String target) {
+        var address = HostAndPort.fromString(target);
+        return ManagedChannelBuilder
+                .forAddress(address.getHost(), address.getPort())
+                .usePlaintext()
+                .build();
+    }
 
     @Configuration
     @ConfigurationProperties(prefix = "grpc")
@@ -45,6 +108,53 @@ public class GrpcConfiguration {
         private Integer port = 8080;
         private Integer retryTimeoutMills = 5000;
         private Integer maxRetry = 3;
+        /**
+         * Encoding of the prime chunks sent by the backend.
+         */
+        private Encoding encoding = Encoding.DELTA_VARINT;
+        /**
+         * Number of numbers in one primality test request, the batches are sent concurrently.
+         */
+        private Integer primalityBatchSize = 65_536;
+        /**
+         * The primes until this number are cached by the proxy, 4 bytes per prime. Not cached if not positive.
+         */
+        private Integer prefixCacheLimit = 1_000_000;
+        /**
+         * Ranges of at least this size are split into partitions requested concurrently. Not split if not positive.
+         */
+        private Long scatterThreshold = 10_000_000L;
+        private Integer scatterPartitions = 4;
+        /**
+         * Number of chunks of a partition buffered ahead of the previous partitions.
+         */
+        private Integer scatterPrefetch = 8;
+        /**
+         * Static list of backends as host:port, {@link #host} and {@link #port} are used if empty.
+         */
+        private List<String> backends = List.of();
+        /**
+         * Balances between all addresses of {@link #host}, resolved every {@link #dnsRefresh}.
+         */
+        private boolean resolveAll = false;
+        private Duration dnsRefresh = Duration.ofSeconds(30);
+        private Balancing balancing = Balancing.ROUND_ROBIN;
+        /**
+         * Number of connections to one backend.
+         */
+        private Integer channelsPerBackend = 1;
+        private OutlierEjection outlierEjection = new OutlierEjection();
+    }
+
+    /**
+     * A backend failing the number of consecutive calls is ejected for the ejection time multiplied by the number of
+     * its ejections, at most 10 times.
+     */
+    @Data
+    public static class OutlierEjection {
+        private Integer consecutiveFailures = 5;
+        private Duration ejectionTime = Duration.ofSeconds(10);
+        private Integer maxEjectionPercent = 50;
     }
 
 }
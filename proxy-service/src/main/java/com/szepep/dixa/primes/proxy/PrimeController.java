@@ -1,46 +1,157 @@
 package com.szepep.dixa.primes.proxy;
 
 import com.google.common.base.Preconditions;
+import com.szepep.dixa.primes.proxy.encoding.PrimeEncoder;
+import com.szepep.dixa.primes.proxy.encoding.PrimeFormat;
 import com.szepep.dixa.primes.proxy.service.PrimeService;
 import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.text.MessageFormat;
-import java.util.stream.IntStream;
+import java.time.Duration;
+import java.util.NoSuchElementException;
 
 @RestController
 @RequestMapping("/prime")
 @AllArgsConstructor
 public class PrimeController {
 
+    /**
+     * The encoded buffers carry no charset, the header is the same as of the former string elements.
+     */
+    @SuppressWarnings("deprecation")
+    private static final String STREAM_JSON_UTF8 = MediaType.APPLICATION_STREAM_JSON_VALUE + ";charset=UTF-8";
+
     private final PrimeService service;
+    private final EncoderConfig encoder;
 
     /**
      * The endpoint returns prime numbers until number.
      * <p>
      * APPLICATION_STREAM_JSON is deprecated but Chrome shows the continuous response.
      * APPLICATION_NDJSON should be used but chrome downloads the response.
+     * <p>
+     * Numbers in the int range use the int32 backend API, larger numbers the int64 one. The primes are written
+     * straight into the response buffers, the chunks are merged until the flush size or interval, see
+     * {@link PrimeEncoder}.
+     * <p>
+     * The format is negotiated by the Accept header, comma separated by default, see {@link PrimeFormat}.
      *
      * @param number The upper limit of prime numbers
      * @return All prime numbers less than equal to number.
      */
-    @SuppressWarnings("deprecation")
-    @GetMapping(value = "/{number}", produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
-    public Flux<String> primes(@PathVariable("number") int number) {
+    @GetMapping(value = "/{number}", produces = {
+            STREAM_JSON_UTF8,
+            MediaType.APPLICATION_NDJSON_VALUE,
+            MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            PrimeFormat.INT32_LE_VALUE
+    })
+    public Flux<DataBuffer> primes(@PathVariable("number") long number, ServerHttpRequest request,
+                                   ServerHttpResponse response) {
         Preconditions.checkArgument(number >= 0, "The number must be greater or equal to 0");
-        return service.prime(number)
-                .map(Object::toString)
-                .zipWith(Flux.fromStream(IntStream.iterate(0, i -> i + 1).boxed()))
-                .map(tuple -> {
-                            var prime = tuple.getT1();
-                            var idx = tuple.getT2();
-                            return idx == 0 ? prime : "," + prime;
-                        }
-                );
+        var format = format(request, response, number);
+        return number < Integer.MAX_VALUE
+                ? PrimeEncoder.encodeInts(service.primeChunks((int) number), format, response.bufferFactory(),
+                encoder.getFlushSize(), encoder.getFlushInterval())
+                : PrimeEncoder.encodeLongs(service.primeLongChunks(number), format, response.bufferFactory(),
+                encoder.getFlushSize(), encoder.getFlushInterval());
+    }
+
+    /**
+     * The endpoint returns prime numbers of the range. Only the range is sieved, the response time does not depend on
+     * the position of the range.
+     *
+     * @param from The lower limit of prime numbers, inclusive
+     * @param to   The upper limit of prime numbers, inclusive
+     * @return All prime numbers between from and to.
+     */
+    @GetMapping(value = "/range", produces = {
+            STREAM_JSON_UTF8,
+            MediaType.APPLICATION_NDJSON_VALUE,
+            MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            PrimeFormat.INT32_LE_VALUE
+    })
+    public Flux<DataBuffer> range(@RequestParam("from") long from, @RequestParam("to") long to,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        Preconditions.checkArgument(from >= 0, "The lower limit must be greater or equal to 0");
+        Preconditions.checkArgument(from <= to, "The lower limit must be less or equal to the upper limit");
+        var format = format(request, response, to);
+        return PrimeEncoder.encodeLongs(service.primeRangeChunks(from, to), format, response.bufferFactory(),
+                encoder.getFlushSize(), encoder.getFlushInterval());
+    }
+
+    /**
+     * Selects the format by the Accept header and sets it as the content type of the response.
+     *
+     * @param limit The largest number of the response.
+     */
+    private static PrimeFormat format(ServerHttpRequest request, ServerHttpResponse response, long limit) {
+        var format = PrimeFormat.negotiate(request.getHeaders().getAccept());
+        Preconditions.checkArgument(format != PrimeFormat.INT32_LE || limit <= Integer.MAX_VALUE,
+                "The int32 format supports numbers until " + Integer.MAX_VALUE);
+        response.getHeaders().setContentType(format.mediaType());
+        return format;
+    }
+
+    /**
+     * The endpoint returns the number of prime numbers until number, without listing them.
+     *
+     * @param number The upper limit of prime numbers
+     * @return Number of prime numbers less than equal to number.
+     */
+    @GetMapping("/count/{number}")
+    public Mono<Integer> count(@PathVariable("number") int number) {
+        Preconditions.checkArgument(number >= 0, "The number must be greater or equal to 0");
+        return service.count(number);
+    }
+
+    /**
+     * The endpoint returns the nth prime number.
+     *
+     * @param n Index of the prime number, the first one is 2
+     * @return The nth prime number.
+     */
+    @GetMapping("/nth/{n}")
+    public Mono<Integer> nth(@PathVariable("n") int n) {
+        Preconditions.checkArgument(n > 0, "The index must be greater than 0");
+        return service.nth(n);
+    }
+
+    /**
+     * The endpoint returns the largest prime number until number.
+     *
+     * @param number The upper limit of the prime number
+     * @return The largest prime number less than equal to number, 404 if there is none.
+     */
+    @GetMapping("/last/{number}")
+    public Mono<Integer> last(@PathVariable("number") int number) {
+        Preconditions.checkArgument(number >= 0, "The number must be greater or equal to 0");
+        return service.lastPrime(number)
+                .switchIfEmpty(Mono.error(() ->
+                        new NoSuchElementException("There is no prime less or equal to " + number)));
+    }
+
+    /**
+     * The endpoint tests the primality of a batch of numbers.
+     *
+     * @param numbers JSON array of the numbers
+     * @return JSON array of booleans, true if the number at the same position is prime.
+     */
+    @PostMapping(value = "/check", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<boolean[]> check(@RequestBody long[] numbers) {
+        return service.isPrime(numbers);
     }
 
     @ExceptionHandler(IllegalArgumentException.class)
@@ -48,10 +159,28 @@ public class PrimeController {
         return new ResponseEntity(e.getMessage(), null, HttpStatus.BAD_REQUEST);
     }
 
+    @ExceptionHandler(NoSuchElementException.class)
+    public ResponseEntity<?> handlerNoSuchElement(NoSuchElementException e) {
+        return new ResponseEntity(e.getMessage(), null, HttpStatus.NOT_FOUND);
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<?> handlerException(Exception e) {
         String message = MessageFormat.format("{0}: {1}", e.getClass().getCanonicalName(), e.getMessage());
         return new ResponseEntity(message, null, HttpStatus.INTERNAL_SERVER_ERROR);
     }
 
+    @Configuration
+    @ConfigurationProperties(prefix = "encoder")
+    @Data
+    public static class EncoderConfig {
+        /**
+         * Primes of one response buffer, the smaller chunks of the backend are merged until it.
+         */
+        private int flushSize = 8192;
+        /**
+         * The longest time a merged chunk waits for the flush size.
+         */
+        private Duration flushInterval = Duration.ofMillis(50);
+    }
 }
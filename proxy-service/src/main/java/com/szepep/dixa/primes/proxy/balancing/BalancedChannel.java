@@ -0,0 +1,340 @@
+package com.szepep.dixa.primes.proxy.balancing;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Sets;
+import com.google.common.net.HostAndPort;
+import com.szepep.dixa.primes.proxy.GrpcConfiguration;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static io.grpc.Status.Code.DEADLINE_EXCEEDED;
+import static io.grpc.Status.Code.UNAVAILABLE;
+
+/**
+ * Channel spreading the calls over several backends.
+ * <p>
+ * Every backend has a pool of subchannels, each of them is a separate connection. A call goes to the backend chosen by
+ * the {@link Balancing}, then to the next subchannel of the backend in turn.
+ * <p>
+ * A backend failing a number of consecutive calls is ejected for a time growing with the number of its ejections, at
+ * most the configured percentage of the backends is ejected at once. If all backends are ejected the calls go to all
+ * of them. Without any backend, e.g. until the host name is resolved, the calls fail with UNAVAILABLE.
+ */
+@Slf4j
+@ThreadSafe
+public class BalancedChannel extends Channel {
+
+    /**
+     * Failures of the backend, not of the request. INTERNAL is left out, the server reports every error of a request
+     * with it.
+     */
+    private static final Set<Status.Code> FAILURES = Sets.immutableEnumSet(UNAVAILABLE, DEADLINE_EXCEEDED);
+
+    /**
+     * The longest ejection in the multiples of the ejection time.
+     */
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private final Function<String, ManagedChannel> channelFactory;
+    private final GrpcConfiguration.GrpcConfig config;
+    private final Ticker ticker;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Backends by target, replaced on update.
+     */
+    private volatile Map<String, Backend> backends = Map.of();
+
+    /**
+     * Snapshot of the backends receiving the calls, rebuilt on update, on ejection and once an ejection ends.
+     */
+    private volatile Eligible eligible = new Eligible(List.of(), false, 0);
+
+    /**
+     * @param targets        The backends, can be empty until the first update.
+     * @param channelFactory Creates a subchannel of a target.
+     */
+    public BalancedChannel(List<String> targets, Function<String, ManagedChannel> channelFactory,
+                           GrpcConfiguration.GrpcConfig config) {
+        this(targets, channelFactory, config, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    BalancedChannel(List<String> targets, Function<String, ManagedChannel> channelFactory,
+                    GrpcConfiguration.GrpcConfig config, Ticker ticker) {
+        Preconditions.checkArgument(config.getChannelsPerBackend() > 0, "At least one channel per backend is needed");
+        this.channelFactory = channelFactory;
+        this.config = config;
+        this.ticker = ticker;
+        update(targets);
+    }
+
+    /**
+     * Replaces the backends, the channels of the kept backends are reused, the removed ones are shut down.
+     */
+    public synchronized void update(List<String> targets) {
+        var current = backends;
+        var updated = new LinkedHashMap<String, Backend>();
+        for (var target : targets) {
+            var backend = current.get(target);
+            updated.put(target, backend != null ? backend : new Backend(target));
+        }
+        current.forEach((target, backend) -> {
+            if (!updated.containsKey(target)) backend.shutdown();
+        });
+        if (!updated.keySet().equals(current.keySet())) log.info("gRPC backends {}", updated.keySet());
+        backends = Map.copyOf(updated);
+        refresh();
+    }
+
+    public void shutdown() {
+        backends.values().forEach(Backend::shutdown);
+    }
+
+    @Override
+    public <Q, R> ClientCall<Q, R> newCall(MethodDescriptor<Q, R> method, CallOptions options) {
+        var backend = pick();
+        if (backend == null) return new FailingCall<>(Status.UNAVAILABLE.withDescription("No gRPC backend"));
+        return new ForwardingClientCall.SimpleForwardingClientCall<>(backend.next().newCall(method, options)) {
+            @Override
+            public void start(Listener<R> listener, Metadata headers) {
+                // counted from the start, a call cancelled before it is never closed by the backend
+                backend.outstanding.incrementAndGet();
+                try {
+                    super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(listener) {
+                        @Override
+                        public void onClose(Status status, Metadata trailers) {
+                            backend.closed(status);
+                            super.onClose(status, trailers);
+                        }
+                    }, headers);
+                } catch (RuntimeException e) {
+                    backend.outstanding.decrementAndGet();
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Override
+    public String authority() {
+        var current = backends.values().iterator();
+        return current.hasNext() ? current.next().channels.get(0).authority()
+                : HostAndPort.fromParts(config.getHost(), config.getPort()).toString();
+    }
+
+    /**
+     * @return The backend of the next call, null if there is no backend.
+     */
+    @VisibleForTesting
+    @Nullable
+    Backend pick() {
+        var current = eligible;
+        if (current.expired(ticker.read())) current = refresh();
+        var available = current.backends;
+        if (available.isEmpty()) return null;
+
+        int start = Math.floorMod(next.getAndIncrement(), available.size());
+        if (config.getBalancing() == Balancing.ROUND_ROBIN) return available.get(start);
+
+        // least outstanding, the ties are broken in turn
+        Backend best = null;
+        for (int i = 0; i < available.size(); ++i) {
+            var backend = available.get((start + i) % available.size());
+            if (best == null || backend.outstanding.get() < best.outstanding.get()) best = backend;
+        }
+        return best;
+    }
+
+    /**
+     * Rebuilds the snapshot of the backends receiving the calls, the ones not ejected or all if every one is ejected.
+     */
+    private synchronized Eligible refresh() {
+        long now = ticker.read();
+        var all = List.copyOf(backends.values());
+        var available = new ArrayList<Backend>(all.size());
+        boolean expiring = false;
+        long until = 0;
+        for (var backend : all) {
+            if (!backend.ejected(now)) {
+                available.add(backend);
+                continue;
+            }
+            long ejectedUntil = backend.ejectedUntil.get();
+            if (!expiring || ejectedUntil - until < 0) until = ejectedUntil;
+            expiring = true;
+        }
+        eligible = new Eligible(available.isEmpty() ? all : List.copyOf(available), expiring, until);
+        return eligible;
+    }
+
+    @VisibleForTesting
+    List<Backend> eligible() {
+        return eligible.backends;
+    }
+
+    /**
+     * @return Targets of the backends which are not ejected.
+     */
+    @VisibleForTesting
+    List<String> available() {
+        long now = ticker.read();
+        var targets = new ArrayList<String>();
+        backends.forEach((target, backend) -> {
+            if (!backend.ejected(now)) targets.add(target);
+        });
+        return targets;
+    }
+
+    /**
+     * Resets the ejections of the backend after a successful call once its ejection ended, under the lock of the
+     * ejection, so that a concurrent ejection is not lost.
+     */
+    private synchronized void recovered(Backend backend) {
+        if (!backend.ejected(ticker.read())) backend.ejections = 0;
+    }
+
+    private synchronized boolean eject(Backend backend) {
+        long now = ticker.read();
+        var all = backends.values();
+        long ejected = all.stream().filter(b -> b.ejected(now)).count();
+        if ((ejected + 1) * 100 > (long) config.getOutlierEjection().getMaxEjectionPercent() * all.size()) return false;
+
+        int multiplier = Math.min(MAX_EJECTION_MULTIPLIER, ++backend.ejections);
+        long time = config.getOutlierEjection().getEjectionTime().toNanos() * multiplier;
+        backend.ejectedUntil.set(now + time);
+        refresh();
+        log.warn("gRPC backend {} ejected for {}ms", backend.target, TimeUnit.NANOSECONDS.toMillis(time));
+        return true;
+    }
+
+    /**
+     * Immutable snapshot of the backends receiving the calls.
+     */
+    private static final class Eligible {
+        private final List<Backend> backends;
+        private final boolean expiring;
+        /**
+         * The end of the first ejection, the snapshot changes then.
+         */
+        private final long until;
+
+        private Eligible(List<Backend> backends, boolean expiring, long until) {
+            this.backends = backends;
+            this.expiring = expiring;
+            this.until = until;
+        }
+
+        private boolean expired(long now) {
+            return expiring && now - until >= 0;
+        }
+    }
+
+    /**
+     * Call closed with the status as soon as it is started.
+     */
+    private static final class FailingCall<Q, R> extends ClientCall<Q, R> {
+        private final Status status;
+
+        private FailingCall(Status status) {
+            this.status = status;
+        }
+
+        @Override
+        public void start(Listener<R> listener, Metadata headers) {
+            listener.onClose(status, new Metadata());
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void cancel(@Nullable String message, @Nullable Throwable cause) {
+        }
+
+        @Override
+        public void halfClose() {
+        }
+
+        @Override
+        public void sendMessage(Q message) {
+        }
+    }
+
+    @VisibleForTesting
+    final class Backend {
+        private final String target;
+        private final List<ManagedChannel> channels = new ArrayList<>();
+        private final AtomicInteger nextChannel = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong ejectedUntil = new AtomicLong(ticker.read());
+        /**
+         * Number of ejections since the last successful call after an ejection, written under the lock of the channel.
+         */
+        @GuardedBy("BalancedChannel.this")
+        private volatile int ejections = 0;
+
+        private Backend(String target) {
+            this.target = target;
+            for (int i = 0; i < config.getChannelsPerBackend(); ++i) channels.add(channelFactory.apply(target));
+        }
+
+        private Channel next() {
+            return channels.get(Math.floorMod(nextChannel.getAndIncrement(), channels.size()));
+        }
+
+        private boolean ejected(long now) {
+            return now - ejectedUntil.get() < 0;
+        }
+
+        private void closed(Status status) {
+            outstanding.decrementAndGet();
+            if (!FAILURES.contains(status.getCode())) {
+                consecutiveFailures.set(0);
+                if (ejections > 0) recovered(this);
+                return;
+            }
+            if (consecutiveFailures.incrementAndGet() >= config.getOutlierEjection().getConsecutiveFailures()
+                    && eject(this)) {
+                consecutiveFailures.set(0);
+            }
+        }
+
+        private void shutdown() {
+            channels.forEach(ManagedChannel::shutdown);
+        }
+
+        String target() {
+            return target;
+        }
+
+        int outstanding() {
+            return outstanding.get();
+        }
+    }
+}
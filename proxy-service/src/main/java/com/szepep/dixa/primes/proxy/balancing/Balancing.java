@@ -0,0 +1,15 @@
+package com.szepep.dixa.primes.proxy.balancing;
+
+/**
+ * Choice of the backend of a call.
+ */
+public enum Balancing {
+    /**
+     * The backends in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The backend with the least calls in progress, a long stream keeps its backend busy.
+     */
+    LEAST_OUTSTANDING
+}
@@ -0,0 +1,262 @@
+package com.szepep.dixa.primes.proxy.encoding;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntToLongFunction;
+import java.util.function.ToIntFunction;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Writes the prime chunks straight into the data buffers of the response, one buffer per chunk. No string or boxed
+ * number is created per prime and the response is flushed in a few large buffers instead of one element per prime.
+ * <p>
+ * With a flush threshold the small chunks of the backend are merged into one buffer until they hold the flush size or
+ * the flush interval passes, a chunk never waits longer than the interval for the next ones. A chunk reaching the size
+ * alone is written as it is. A tick of the interval while the client is not reading is dropped, the merging never
+ * requests more chunks from the backend than the client reads.
+ * <p>
+ * The formats are described by {@link PrimeFormat}, the state carried between the chunks (the separator, the previous
+ * prime) belongs to the subscription.
+ */
+public final class PrimeEncoder {
+
+    /**
+     * Size of the scratch array the bytes are formatted into before copied to the buffer in bulk.
+     */
+    private static final int SCRATCH_BYTES = 4096;
+
+    /**
+     * The longest encoded prime with its separator.
+     */
+    private static final int MAX_BYTES = 20;
+
+    /**
+     * Markers of the merged chunks, a tick of the flush interval and the end of the chunks.
+     */
+    private static final Object TICK = new Object();
+    private static final Object END = new Object();
+
+    private PrimeEncoder() {
+    }
+
+    /**
+     * Merges the chunks until the flush size or the flush interval, see {@link #encodeInts(Flux, PrimeFormat,
+     * DataBufferFactory)}.
+     *
+     * @param flushSize     Primes of one buffer, a larger chunk is written alone.
+     * @param flushInterval The longest time a chunk waits for the flush size.
+     */
+    public static Flux<DataBuffer> encodeInts(Flux<int[]> chunks, PrimeFormat format, DataBufferFactory factory,
+                                              int flushSize, Duration flushInterval) {
+        var merged = coalesce(chunks.filter(chunk -> chunk.length > 0), chunk -> chunk.length,
+                batch -> Ints.concat(batch.toArray(new int[0][])), flushSize, flushInterval);
+        return encodeInts(merged, format, factory);
+    }
+
+    /**
+     * One buffer per chunk.
+     */
+    public static Flux<DataBuffer> encodeInts(Flux<int[]> chunks, PrimeFormat format, DataBufferFactory factory) {
+        return Flux.defer(() -> {
+            var writer = new Writer(format, factory);
+            return chunks
+                    .filter(chunk -> chunk.length > 0)
+                    .map(chunk -> writer.write(chunk.length, chunk[chunk.length - 1], i -> chunk[i]));
+        });
+    }
+
+    /**
+     * Merges the chunks until the flush size or the flush interval, see {@link #encodeLongs(Flux, PrimeFormat,
+     * DataBufferFactory)}.
+     *
+     * @param flushSize     Primes of one buffer, a larger chunk is written alone.
+     * @param flushInterval The longest time a chunk waits for the flush size.
+     */
+    public static Flux<DataBuffer> encodeLongs(Flux<long[]> chunks, PrimeFormat format, DataBufferFactory factory,
+                                               int flushSize, Duration flushInterval) {
+        var merged = coalesce(chunks.filter(chunk -> chunk.length > 0), chunk -> chunk.length,
+                batch -> Longs.concat(batch.toArray(new long[0][])), flushSize, flushInterval);
+        return encodeLongs(merged, format, factory);
+    }
+
+    /**
+     * One buffer per chunk.
+     *
+     * @throws IllegalArgumentException in the stream if a prime does not fit in the format, e.g. int32.
+     */
+    public static Flux<DataBuffer> encodeLongs(Flux<long[]> chunks, PrimeFormat format, DataBufferFactory factory) {
+        return Flux.defer(() -> {
+            var writer = new Writer(format, factory);
+            return chunks
+                    .filter(chunk -> chunk.length > 0)
+                    .map(chunk -> writer.write(chunk.length, chunk[chunk.length - 1], i -> chunk[i]));
+        });
+    }
+
+    /**
+     * Merges the consecutive chunks until they hold the flush size or a tick of the interval, whichever comes first.
+     * The chunks are read one by one, a tick without demand of the client is dropped and the next one flushes.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Flux<T> coalesce(Flux<T> chunks, ToIntFunction<T> length, Function<List<T>, T> concat,
+                                        int flushSize, Duration flushInterval) {
+        Preconditions.checkArgument(flushSize > 0, "The flush size must be positive");
+        Preconditions.checkArgument(!flushInterval.isNegative() && !flushInterval.isZero(),
+                "The flush interval must be positive");
+        return Flux.defer(() -> {
+            var pending = new int[1];
+            var ticks = Flux.interval(flushInterval).onBackpressureDrop().map(tick -> TICK);
+            return Flux.merge(1, chunks.cast(Object.class).concatWith(Mono.just(END)), ticks)
+                    .takeUntil(item -> item == END)
+                    .bufferUntil(item -> {
+                        if (item != TICK && item != END) {
+                            pending[0] += length.applyAsInt((T) item);
+                            if (pending[0] < flushSize) return false;
+                        }
+                        pending[0] = 0;
+                        return true;
+                    })
+                    .map(items -> items.stream()
+                            .filter(item -> item != TICK && item != END)
+                            .map(item -> (T) item)
+                            .collect(toList()))
+                    .filter(batch -> !batch.isEmpty())
+                    .map(batch -> batch.size() == 1 ? batch.get(0) : concat.apply(batch));
+        });
+    }
+
+    /**
+     * Encoder of the chunks of one response, the chunks are written one after the other.
+     */
+    private static final class Writer {
+        private final PrimeFormat format;
+        private final DataBufferFactory factory;
+        private final byte[] scratch = new byte[SCRATCH_BYTES];
+        private boolean first = true;
+        private long previous = 0;
+
+        private Writer(PrimeFormat format, DataBufferFactory factory) {
+            this.format = format;
+            this.factory = factory;
+        }
+
+        /**
+         * @param last   The largest prime of the chunk, the buffer is sized by it.
+         * @param primes The primes of the chunk by index.
+         */
+        private DataBuffer write(int length, long last, IntToLongFunction primes) {
+            var buffer = factory.allocateBuffer(length * maxBytes(last));
+            try {
+                int position = 0;
+                for (int i = 0; i < length; ++i) {
+                    if (position > SCRATCH_BYTES - MAX_BYTES) {
+                        buffer.write(scratch, 0, position);
+                        position = 0;
+                    }
+                    position = write(primes.applyAsLong(i), position);
+                }
+                return buffer.write(scratch, 0, position);
+            } catch (RuntimeException e) {
+                DataBufferUtils.release(buffer);
+                throw e;
+            }
+        }
+
+        private int maxBytes(long last) {
+            switch (format) {
+                case DELTA_VARINT:
+                    return varintBytes(last);
+                case INT32_LE:
+                    return Integer.BYTES;
+                default:
+                    return digits(last) + 1;
+            }
+        }
+
+        /**
+         * @return The position after the prime.
+         */
+        private int write(long prime, int position) {
+            switch (format) {
+                case COMMA_SEPARATED:
+                    if (!first) scratch[position++] = ',';
+                    first = false;
+                    return writeDigits(scratch, position, prime);
+                case NDJSON:
+                    position = writeDigits(scratch, position, prime);
+                    scratch[position++] = '\n';
+                    return position;
+                case DELTA_VARINT:
+                    position = writeVarint(scratch, position, prime - previous);
+                    previous = prime;
+                    return position;
+                case INT32_LE:
+                    Preconditions.checkArgument(prime <= Integer.MAX_VALUE, "%s does not fit in int32", prime);
+                    scratch[position++] = (byte) prime;
+                    scratch[position++] = (byte) (prime >>> 8);
+                    scratch[position++] = (byte) (prime >>> 16);
+                    scratch[position++] = (byte) (prime >>> 24);
+                    return position;
+                default:
+                    throw new IllegalStateException("Unknown format " + format);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static int digits(long number) {
+        int digits = 1;
+        while (number >= 10) {
+            number /= 10;
+            ++digits;
+        }
+        return digits;
+    }
+
+    @VisibleForTesting
+    static int varintBytes(long number) {
+        int bytes = 1;
+        while ((number >>>= 7) != 0) ++bytes;
+        return bytes;
+    }
+
+    /**
+     * Writes the decimal digits of the non-negative number from the position.
+     *
+     * @return The position after the last digit.
+     */
+    private static int writeDigits(byte[] bytes, int position, long number) {
+        int end = position + digits(number);
+        for (int i = end - 1; i >= position; --i) {
+            bytes[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes the non-negative number as an unsigned LEB128 varint from the position.
+     *
+     * @return The position after the last byte.
+     */
+    private static int writeVarint(byte[] bytes, int position, long number) {
+        while ((number & ~0x7fL) != 0) {
+            bytes[position++] = (byte) ((number & 0x7f) | 0x80);
+            number >>>= 7;
+        }
+        bytes[position++] = (byte) number;
+        return position;
+    }
+}
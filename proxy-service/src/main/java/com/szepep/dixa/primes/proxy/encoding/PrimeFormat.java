@@ -0,0 +1,58 @@
+package com.szepep.dixa.primes.proxy.encoding;
+
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output formats of the prime streams, selected by the Accept header.
+ */
+public enum PrimeFormat {
+    /**
+     * Comma separated decimal numbers, displayed continuously by the browsers.
+     */
+    @SuppressWarnings("deprecation")
+    COMMA_SEPARATED(new MediaType(MediaType.APPLICATION_STREAM_JSON, StandardCharsets.UTF_8)),
+    /**
+     * One decimal number per line.
+     */
+    NDJSON(MediaType.APPLICATION_NDJSON),
+    /**
+     * The first prime followed by the gaps between the consecutive primes, every value is an unsigned LEB128 varint.
+     * A gap in the int range takes one or two bytes.
+     */
+    DELTA_VARINT(MediaType.APPLICATION_OCTET_STREAM),
+    /**
+     * Little-endian int32 array, only for primes in the int range.
+     */
+    INT32_LE(MediaType.parseMediaType(PrimeFormat.INT32_LE_VALUE));
+
+    public static final String INT32_LE_VALUE = "application/x-int32-le";
+
+    private final MediaType mediaType;
+
+    PrimeFormat(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public MediaType mediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @param accept The accepted media types of the request.
+     * @return The format of the most specific and preferred accepted media type, comma separated if any is accepted.
+     */
+    public static PrimeFormat negotiate(List<MediaType> accept) {
+        var sorted = new ArrayList<>(accept);
+        MediaType.sortBySpecificityAndQuality(sorted);
+        for (var type : sorted) {
+            if (type.isWildcardType()) break;
+            for (var format : values())
+                if (type.isCompatibleWith(format.mediaType)) return format;
+        }
+        return COMMA_SEPARATED;
+    }
+}
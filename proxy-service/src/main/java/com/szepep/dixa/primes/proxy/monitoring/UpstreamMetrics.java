@@ -0,0 +1,130 @@
+package com.szepep.dixa.primes.proxy.monitoring;
+
+import io.grpc.Status;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import static com.szepep.dixa.primes.proxy.monitoring.CorrelationId.CORRELATION_KEY;
+
+/**
+ * Metrics of the calls to the backend, measured separately from the HTTP requests so the time spent in the proxy and
+ * in the backend can be told apart.
+ * <p>
+ * The registry does not support exemplars, an upstream stream slower than the threshold is logged with its
+ * correlation id instead.
+ */
+@Component
+@Slf4j
+public class UpstreamMetrics {
+
+    private final MeterRegistry registry;
+    private final UpstreamMetricsConfig config;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    @Autowired
+    public UpstreamMetrics(MeterRegistry registry, UpstreamMetricsConfig config) {
+        this.registry = registry;
+        this.config = config;
+        Gauge.builder("proxy.upstream.streams.active", activeStreams, AtomicInteger::get)
+                .description("Backend streams in progress")
+                .register(registry);
+    }
+
+    /**
+     * Measures every subscription of the backend stream, a retried stream is measured once per attempt.
+     *
+     * @param method The backend method.
+     * @param primes Number of primes in one element.
+     */
+    public <T> Flux<T> stream(String method, Flux<T> upstream, ToIntFunction<T> primes) {
+        return Flux.deferContextual(context -> {
+            var cid = context.getOrDefault(CORRELATION_KEY, "");
+            var start = new AtomicLong();
+            var firstPrime = new AtomicLong(-1);
+            var count = new AtomicLong();
+            // recorded before the termination is propagated
+            Runnable finish = () -> {
+                activeStreams.decrementAndGet();
+                record(method, cid, System.nanoTime() - start.get(), firstPrime.get(), count.get());
+            };
+            return upstream
+                    .doOnSubscribe(s -> {
+                        activeStreams.incrementAndGet();
+                        start.set(System.nanoTime());
+                    })
+                    .doOnNext(element -> {
+                        int n = primes.applyAsInt(element);
+                        if (n > 0 && firstPrime.get() < 0) firstPrime.set(System.nanoTime() - start.get());
+                        count.addAndGet(n);
+                    })
+                    .doOnTerminate(finish)
+                    .doOnCancel(finish);
+        });
+    }
+
+    /**
+     * Counts a retry of the backend call by the status of the failure.
+     */
+    public void retried(String method, Throwable failure) {
+        Counter.builder("proxy.upstream.retries")
+                .description("Retried backend calls")
+                .tag("method", method)
+                .tag("code", Status.fromThrowable(failure).getCode().name())
+                .register(registry)
+                .increment();
+    }
+
+    private void record(String method, String cid, long durationNanos, long firstPrimeNanos, long primes) {
+        Timer.builder("proxy.upstream.duration")
+                .description("Duration of a backend stream")
+                .tag("method", method)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+        if (firstPrimeNanos >= 0) {
+            Timer.builder("proxy.upstream.first.prime")
+                    .description("Time to the first prime of a backend stream")
+                    .tag("method", method)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(firstPrimeNanos, TimeUnit.NANOSECONDS);
+        }
+        DistributionSummary.builder("proxy.upstream.primes")
+                .description("Primes of a backend stream")
+                .tag("method", method)
+                .register(registry)
+                .record(primes);
+
+        if (durationNanos > config.getSlowStream().toNanos()) {
+            log.warn("[{}] slow {} stream, first prime in {}ms, {} primes in {}ms", cid, method,
+                    TimeUnit.NANOSECONDS.toMillis(firstPrimeNanos), primes,
+                    TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        }
+    }
+
+    @Configuration
+    @ConfigurationProperties(prefix = "grpc.metrics")
+    @Data
+    public static class UpstreamMetricsConfig {
+        /**
+         * Backend streams longer than this are logged with the correlation id.
+         */
+        private Duration slowStream = Duration.ofSeconds(5);
+    }
+}
@@ -1,28 +1,44 @@
 package com.szepep.dixa.primes.proxy.service;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import com.szepep.dixa.primes.proxy.GrpcConfiguration;
+import com.szepep.dixa.primes.proxy.monitoring.UpstreamMetrics;
+import com.szepep.dixa.proto.Chunk;
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.CountResponse;
+import com.szepep.dixa.proto.DeltaVarint;
+import com.szepep.dixa.proto.LastPrimeResponse;
+import com.szepep.dixa.proto.LongChunk;
+import com.szepep.dixa.proto.NthRequest;
+import com.szepep.dixa.proto.PrimalityRequest;
+import com.szepep.dixa.proto.RangeRequest;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
 import com.szepep.dixa.proto.Request;
 import com.szepep.dixa.proto.Response;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.StatusRuntimeException;
-import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
 import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
 
 import java.time.Duration;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
 
 import static com.szepep.dixa.primes.proxy.monitoring.CorrelationId.CORRELATION_KEY;
 import static io.grpc.Status.Code.*;
 
 @Service
-@AllArgsConstructor
 @Slf4j
 public class GrpcPrimeService implements PrimeService {
 
@@ -32,26 +48,287 @@ public class GrpcPrimeService implements PrimeService {
             PERMISSION_DENIED
     );
 
+    /**
+     * Number of primes in one chunk served from the prefix cache, the same as a chunk of the backend.
+     */
+    private static final int CACHE_CHUNK_SIZE = 8192;
+
     private final ReactorServiceGrpc.ReactorServiceStub stub;
     private final GrpcConfiguration.GrpcConfig config;
+    private final UpstreamMetrics metrics;
+    private final PrimePrefixCache cache;
+
+    public GrpcPrimeService(ReactorServiceGrpc.ReactorServiceStub stub,
+                            GrpcConfiguration.GrpcConfig config,
+                            UpstreamMetrics metrics) {
+        Preconditions.checkArgument(config.getPrimalityBatchSize() > 0, "The primality batch size must be positive");
+        this.stub = stub;
+        this.config = config;
+        this.metrics = metrics;
+        this.cache = new PrimePrefixCache(config.getPrefixCacheLimit());
+    }
+
+    /**
+     * The primes until the prefix cache limit are served by the proxy, only the primes above the limit are requested
+     * from the backend. The backend reads the remaining primes from its sieve, starting at the limit.
+     */
+    @Override
+    public Flux<int[]> primeChunks(final int number) {
+        if (!cache.enabled()) return upstreamChunks(0, number);
+        return cache.primes(this::loadPrefix)
+                .flatMapMany(primes -> number <= cache.limit()
+                        ? PrimePrefixCache.until(primes, number, CACHE_CHUNK_SIZE)
+                        : Flux.concat(
+                        PrimePrefixCache.until(primes, cache.limit(), CACHE_CHUNK_SIZE),
+                        upstreamChunks(cache.limit() + 1, number)));
+    }
+
+    /**
+     * The primes of the int range are requested as chunks, the backends serve them from their sieve. A large range is
+     * scattered like {@link #primeRangeChunks(long, long)}.
+     */
+    private Flux<int[]> upstreamChunks(final int from, final int number) {
+        if (!scattered(from, number)) return upstreamPrime(from, number);
+        return scatter(from, number, (low, high) -> upstreamPrime((int) low, (int) high));
+    }
+
+    /**
+     * A retry requests the chunks after the last delivered prime.
+     */
+    private Flux<int[]> upstreamPrime(final int from, final int number) {
+        return resumable("getChunks", chunks(from, number),
+                last -> last >= number ? Flux.empty() : chunks((int) last + 1, number),
+                chunk -> chunk.length == 0 ? -1 : chunk[chunk.length - 1]);
+    }
+
+    private Flux<int[]> chunks(final int from, final int number) {
+        return metrics.stream("getChunks", sendChunkRequest(from, number).map(GrpcPrimeService::primes),
+                chunk -> chunk.length);
+    }
+
+    private Mono<int[]> loadPrefix() {
+        log.info("Loading the primes until {}", cache.limit());
+        return upstreamPrime(0, cache.limit())
+                .collectList()
+                .map(chunks -> Ints.concat(chunks.toArray(int[][]::new)))
+                .doOnNext(primes -> log.info("{} primes cached", primes.length));
+    }
 
+    /**
+     * The primes of the int range come from {@link #primeChunks(int)}, the larger ones are requested as a range. Both
+     * are streamed in chunks, not one message per prime.
+     */
     @Override
-    public Flux<Integer> prime(final int number) {
+    public Flux<long[]> primeLongChunks(final long number) {
+        if (number < Integer.MAX_VALUE) return primeChunks((int) number).map(GrpcPrimeService::toLongs);
+        return Flux.concat(
+                primeChunks(Integer.MAX_VALUE - 1).map(GrpcPrimeService::toLongs),
+                primeRangeChunks(Integer.MAX_VALUE, number));
+    }
+
+    @Override
+    public Flux<long[]> primeRangeChunks(final long from, final long to) {
+        if (!scattered(from, to)) return upstreamRange(from, to);
+        return scatter(from, to, this::upstreamRange);
+    }
+
+    /**
+     * A range of at least the scatter threshold is split into contiguous partitions requested concurrently, the calls
+     * are spread over the backends and every backend sieves only its partition. The partitions are merged in order,
+     * at most scatter-prefetch chunks of a partition are buffered ahead of the previous ones.
+     */
+    private boolean scattered(long from, long to) {
+        return config.getScatterThreshold() > 0
+                && config.getScatterPartitions() > 1
+                && to - from >= config.getScatterThreshold();
+    }
+
+    /**
+     * @param partition Requests the primes of a partition, between its inclusive bounds.
+     */
+    private <T> Flux<T> scatter(long from, long to, Partition<T> partition) {
+        int partitions = config.getScatterPartitions();
+        long size = (to - from) / partitions + 1;
+        var ranges = Flux.range(0, partitions)
+                .map(i -> from + i * size)
+                .filter(low -> low <= to)
+                .map(low -> partition.primes(low, Math.min(to, low + size - 1)));
+        return Flux.mergeSequential(ranges, partitions, config.getScatterPrefetch());
+    }
+
+    @FunctionalInterface
+    private interface Partition<T> {
+        Flux<T> primes(long from, long to);
+    }
+
+    /**
+     * A retry requests the rest of the range after the last delivered prime.
+     */
+    private Flux<long[]> upstreamRange(final long from, final long to) {
+        return resumable("getRange", rangeChunks(from, to),
+                last -> last >= to ? Flux.empty() : rangeChunks(last + 1, to),
+                GrpcPrimeService::last);
+    }
+
+    private Flux<long[]> rangeChunks(final long from, final long to) {
+        return metrics.stream("getRange", sendRangeRequest(from, to), LongChunk::getPrimesCount)
+                .map(GrpcPrimeService::primes);
+    }
+
+    /**
+     * Retries the stream where it failed instead of from the beginning. The chunks delivered before the failure are
+     * neither requested nor emitted again, a retry requests only the primes after the last delivered one. Empty chunks
+     * are dropped. The retries are counted from the last delivered prime, a long stream failing now and then is not
+     * cut by the retries of its earlier failures.
+     *
+     * @param method The backend method of the first attempt, the retries are counted by it.
+     * @param first  The first attempt.
+     * @param resume The retry after the last delivered prime.
+     * @param last   The last prime of a chunk, negative if the chunk is empty.
+     */
+    private <T> Flux<T> resumable(String method, Flux<T> first, LongFunction<Flux<T>> resume, ToLongFunction<T> last) {
+        return Flux.defer(() -> {
+            var delivered = new AtomicLong(-1);
+            return Flux.defer(() -> delivered.get() < 0 ? first : resume.apply(delivered.get()))
+                    .<T>handle((chunk, sink) -> {
+                        long prime = last.applyAsLong(chunk);
+                        if (prime < 0) return;
+                        delivered.set(prime);
+                        sink.next(chunk);
+                    })
+                    .retryWhen(retrySpec(method).transientErrors(true));
+        });
+    }
+
+    @Override
+    public Mono<Integer> count(final int number) {
         return sendRequest(number)
+                .flatMap(stub::getCount)
+                .map(CountResponse::getCount)
+                .retryWhen(retrySpec("getCount"));
+    }
+
+    @Override
+    public Mono<Integer> nth(final int n) {
+        return sendNthRequest(n)
+                .flatMap(stub::getNth)
                 .map(Response::getPrime)
-                .retryWhen(Retry
-                        .backoff(config.getMaxRetry(), Duration.ofMillis(config.getRetryTimeoutMills()))
-                        .filter(this::retry)
-                );
+                .retryWhen(retrySpec("getNth"));
     }
 
-    private Flux<Response> sendRequest(Integer n) {
+    @Override
+    public Mono<Integer> lastPrime(final int number) {
+        return sendRequest(number)
+                .flatMap(stub::getLastPrime)
+                .filter(LastPrimeResponse::hasPrime)
+                .map(LastPrimeResponse::getPrime)
+                .retryWhen(retrySpec("getLastPrime"));
+    }
+
+    @Override
+    public Mono<boolean[]> isPrime(final long[] numbers) {
+        int batchSize = config.getPrimalityBatchSize();
+        return Flux.range(0, (numbers.length + batchSize - 1) / batchSize)
+                .flatMapSequential(batch -> {
+                    int from = batch * batchSize;
+                    return sendPrimalityRequest(numbers, from, Math.min(numbers.length, from + batchSize))
+                            .flatMap(stub::isPrime)
+                            .retryWhen(retrySpec("isPrime"));
+                })
+                .collectList()
+                .map(responses -> {
+                    var primes = new boolean[numbers.length];
+                    int idx = 0;
+                    for (var response : responses)
+                        for (int i = 0; i < response.getPrimeCount(); ++i) primes[idx++] = response.getPrime(i);
+                    return primes;
+                });
+    }
+
+    /**
+     * @param method The backend method, the retries are counted by the method and the status of the failure.
+     */
+    private RetryBackoffSpec retrySpec(String method) {
+        return Retry
+                .backoff(config.getMaxRetry(), Duration.ofMillis(config.getRetryTimeoutMills()))
+                .filter(this::retry)
+                .doBeforeRetry(signal -> metrics.retried(method, signal.failure()));
+    }
+
+    private static Optional<String> correlationId(ContextView context) {
+        return context.getOrEmpty(CORRELATION_KEY).map(String.class::cast);
+    }
+
+    private Flux<Chunk> sendChunkRequest(int from, int n) {
+        var builder = ChunkRequest.newBuilder().setFrom(from).setNumber(n).setEncoding(config.getEncoding());
+        return Mono.deferContextual(context ->
+                Mono.just(correlationId(context)
+                        .map(cid -> builder.setCorrelationId(cid).build())
+                        .orElse(builder.build()))
+        ).flatMapMany(stub::getChunks);
+    }
+
+    private Mono<Request> sendRequest(int n) {
         var builder = Request.newBuilder().setNumber(n);
         return Mono.deferContextual(context ->
-                Mono.just(context.getOrEmpty(CORRELATION_KEY)
-                        .map(cid -> builder.setCorrelationId((String) cid).build())
+                Mono.just(correlationId(context)
+                        .map(cid -> builder.setCorrelationId(cid).build())
                         .orElse(builder.build()))
-        ).flatMapMany(stub::get);
+        );
+    }
+
+    private Mono<NthRequest> sendNthRequest(int n) {
+        var builder = NthRequest.newBuilder().setN(n);
+        return Mono.deferContextual(context ->
+                Mono.just(correlationId(context)
+                        .map(cid -> builder.setCorrelationId(cid).build())
+                        .orElse(builder.build()))
+        );
+    }
+
+    private Mono<PrimalityRequest> sendPrimalityRequest(long[] numbers, int from, int to) {
+        var builder = PrimalityRequest.newBuilder();
+        for (int i = from; i < to; ++i) builder.addNumbers(numbers[i]);
+        return Mono.deferContextual(context ->
+                Mono.just(correlationId(context)
+                        .map(cid -> builder.setCorrelationId(cid).build())
+                        .orElse(builder.build()))
+        );
+    }
+
+    private Flux<LongChunk> sendRangeRequest(long from, long to) {
+        var builder = RangeRequest.newBuilder().setFrom(from).setTo(to);
+        return Mono.deferContextual(context ->
+                Mono.just(correlationId(context)
+                        .map(cid -> builder.setCorrelationId(cid).build())
+                        .orElse(builder.build()))
+        ).flatMapMany(stub::getRange);
+    }
+
+    /**
+     * Primes of the chunk, in any encoding.
+     */
+    private static int[] primes(Chunk chunk) {
+        if (!chunk.getDeltas().isEmpty()) return DeltaVarint.decode(chunk.getDeltas());
+        var primes = new int[chunk.getPrimesCount()];
+        for (int i = 0; i < primes.length; ++i) primes[i] = chunk.getPrimes(i);
+        return primes;
+    }
+
+    private static long[] primes(LongChunk chunk) {
+        var primes = new long[chunk.getPrimesCount()];
+        for (int i = 0; i < primes.length; ++i) primes[i] = chunk.getPrimes(i);
+        return primes;
+    }
+
+    private static long[] toLongs(int[] primes) {
+        var longs = new long[primes.length];
+        for (int i = 0; i < longs.length; ++i) longs[i] = primes[i];
+        return longs;
+    }
+
+    private static long last(long[] chunk) {
+        return chunk.length == 0 ? -1 : chunk[chunk.length - 1];
     }
 
     private boolean retry(Throwable throwable) {
@@ -0,0 +1,75 @@
+package com.szepep.dixa.primes.proxy.service;
+
+import com.google.common.base.Preconditions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * The primes until a limit, kept as a sorted int array. The primes never change, they are loaded once and served
+ * without calling the backend.
+ */
+@ThreadSafe
+class PrimePrefixCache {
+
+    private final int limit;
+
+    /**
+     * The load in progress or the loaded primes, null if not loaded yet or the last load failed.
+     */
+    private final AtomicReference<Mono<int[]>> loading = new AtomicReference<>();
+    private volatile int[] primes;
+
+    /**
+     * @param limit The largest number of the cache, not positive disables the cache.
+     */
+    PrimePrefixCache(int limit) {
+        this.limit = Math.max(0, limit);
+    }
+
+    boolean enabled() {
+        return limit > 0;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the cached primes. The first call loads them, the concurrent calls share the load, a failed load is
+     * repeated by the next call.
+     *
+     * @param loader Loads the primes until the limit.
+     */
+    Mono<int[]> primes(Supplier<Mono<int[]>> loader) {
+        Preconditions.checkState(enabled(), "The cache is disabled");
+        var loaded = primes;
+        if (loaded != null) return Mono.just(loaded);
+
+        while (true) {
+            var current = loading.get();
+            if (current != null) return current;
+
+            var load = Mono.defer(loader)
+                    .doOnNext(p -> primes = p)
+                    .doOnError(e -> loading.set(null))
+                    .cache();
+            if (loading.compareAndSet(null, load)) return load;
+        }
+    }
+
+    /**
+     * @param chunkSize Number of primes in one chunk.
+     * @return The cached primes less than or equal to the number, in chunks.
+     */
+    static Flux<int[]> until(int[] primes, int number, int chunkSize) {
+        int idx = Arrays.binarySearch(primes, number);
+        int count = idx >= 0 ? idx + 1 : -idx - 1;
+        return Flux.range(0, (count + chunkSize - 1) / chunkSize)
+                .map(chunk -> Arrays.copyOfRange(primes, chunk * chunkSize, Math.min(count, (chunk + 1) * chunkSize)));
+    }
+}
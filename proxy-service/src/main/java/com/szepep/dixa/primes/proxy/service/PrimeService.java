@@ -1,6 +1,9 @@
 package com.szepep.dixa.primes.proxy.service;
 
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /**
  * Service for generating prime numbers
@@ -10,5 +13,56 @@ public interface PrimeService {
     /**
      * Returns a flux of prime numbers
      */
-    Flux<Integer> prime(int number);
+    default Flux<Integer> prime(int number) {
+        return primeChunks(number).flatMapIterable(Ints::asList);
+    }
+
+    /**
+     * Returns the prime numbers in ascending non-empty chunks, without a signal per prime
+     */
+    Flux<int[]> primeChunks(int number);
+
+    /**
+     * Returns a flux of prime numbers, the number can exceed the int range
+     */
+    default Flux<Long> primeLong(long number) {
+        return primeLongChunks(number).flatMapIterable(Longs::asList);
+    }
+
+    /**
+     * Returns the prime numbers in ascending non-empty chunks, the number can exceed the int range
+     */
+    Flux<long[]> primeLongChunks(long number);
+
+    /**
+     * Returns a flux of prime numbers between from and to, both inclusive
+     */
+    default Flux<Long> primeRange(long from, long to) {
+        return primeRangeChunks(from, to).flatMapIterable(Longs::asList);
+    }
+
+    /**
+     * Returns the prime numbers between from and to in ascending non-empty chunks, both inclusive
+     */
+    Flux<long[]> primeRangeChunks(long from, long to);
+
+    /**
+     * Returns the number of primes less than equal to number
+     */
+    Mono<Integer> count(int number);
+
+    /**
+     * Returns the nth prime, the first one is 2
+     */
+    Mono<Integer> nth(int n);
+
+    /**
+     * Returns the largest prime less than equal to number, empty if there is no such prime
+     */
+    Mono<Integer> lastPrime(int number);
+
+    /**
+     * Returns the primality of every number, in the order of the numbers
+     */
+    Mono<boolean[]> isPrime(long[] numbers);
 }
@@ -1,6 +1,19 @@
 package com.szepep.dixa.primes.proxy;
 
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.szepep.dixa.primes.proxy.monitoring.UpstreamMetrics;
 import com.szepep.dixa.primes.proxy.service.GrpcPrimeService;
+import com.szepep.dixa.proto.Chunk;
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.CountResponse;
+import com.szepep.dixa.proto.DeltaVarint;
+import com.szepep.dixa.proto.Encoding;
+import com.szepep.dixa.proto.LastPrimeResponse;
+import com.szepep.dixa.proto.LongChunk;
+import com.szepep.dixa.proto.PrimalityRequest;
+import com.szepep.dixa.proto.PrimalityResponse;
+import com.szepep.dixa.proto.RangeRequest;
 import com.szepep.dixa.proto.ReactorServiceGrpc;
 import com.szepep.dixa.proto.Response;
 import io.grpc.ManagedChannel;
@@ -9,33 +22,48 @@ import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
 
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class GrpcPrimeServiceTest {
 
 
     private final ReactorServiceGrpc.ServiceImplBase mockService = mock(ReactorServiceGrpc.ServiceImplBase.class);
+    private GrpcConfiguration.GrpcConfig config;
     private GrpcPrimeService grpcPrimeService;
+    private SimpleMeterRegistry registry;
 
     private Server server;
     private ManagedChannel channel;
 
-    static Flux<Response> primes(int... primes) {
-        var stream = Arrays.stream(primes).mapToObj(p -> Response.newBuilder().setPrime(p).build());
-        return Flux.fromStream(stream);
+    static Flux<Chunk> primes(int... primes) {
+        return Flux.just(Chunk.newBuilder().setDeltas(DeltaVarint.encode(primes)).build());
     }
 
     @BeforeEach
@@ -52,11 +80,15 @@ class GrpcPrimeServiceTest {
         channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
         var stub = ReactorServiceGrpc.newReactorStub(channel);
 
-        var config = new GrpcConfiguration.GrpcConfig();
+        config = new GrpcConfiguration.GrpcConfig();
         config.setRetryTimeoutMills(10);
         config.setMaxRetry(5);
+        // every request goes to the backend
+        config.setPrefixCacheLimit(0);
 
-        grpcPrimeService = new GrpcPrimeService(stub, config);
+        registry = new SimpleMeterRegistry();
+        var metrics = new UpstreamMetrics(registry, new UpstreamMetrics.UpstreamMetricsConfig());
+        grpcPrimeService = new GrpcPrimeService(stub, config, metrics);
     }
 
     @AfterEach
@@ -67,7 +99,7 @@ class GrpcPrimeServiceTest {
 
     @Test
     public void testHappyPath() {
-        when(mockService.get(any())).thenReturn(primes(2, 3, 5, 7, 11));
+        when(mockService.getChunks(any())).thenReturn(primes(2, 3, 5, 7, 11));
 
         var result = grpcPrimeService.prime(11)
                 .collectList()
@@ -76,10 +108,196 @@ class GrpcPrimeServiceTest {
         assertEquals(Lists.newArrayList(2, 3, 5, 7, 11), result);
     }
 
+    @Test
+    public void testChunksAreConcatenated() {
+        when(mockService.getChunks(any())).thenReturn(Flux.just(
+                Chunk.newBuilder().setDeltas(DeltaVarint.encode(new int[]{2, 3, 5})).build(),
+                Chunk.newBuilder().setDeltas(DeltaVarint.encode(new int[]{7, 11})).build()
+        ));
+
+        var result = grpcPrimeService.prime(11)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11), result);
+    }
+
+    @Test
+    public void testPackedEncoding() {
+        var request = ArgumentCaptor.forClass(Mono.class);
+        when(mockService.getChunks(request.capture())).thenReturn(
+                Flux.just(Chunk.newBuilder().addAllPrimes(Ints.asList(2, 3, 5, 7, 11)).build()));
+        config.setEncoding(Encoding.PACKED);
+
+        var result = grpcPrimeService.prime(11)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11), result);
+        var sent = (ChunkRequest) ((Mono<?>) request.getValue()).block();
+        assertEquals(Encoding.PACKED, sent.getEncoding());
+    }
+
+    @Test
+    public void testLongHappyPath() {
+        var chunks = ArgumentCaptor.forClass(Mono.class);
+        var range = ArgumentCaptor.forClass(Mono.class);
+        when(mockService.getChunks(chunks.capture())).thenReturn(primes(2, 3, 5, 7));
+        when(mockService.getRange(range.capture())).thenReturn(
+                Flux.just(LongChunk.newBuilder().addPrimes(4294967311L).build()));
+        config.setScatterThreshold(0L);
+
+        var result = grpcPrimeService.primeLong(4294967311L)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2L, 3L, 5L, 7L, 4294967311L), result);
+        assertEquals(Integer.MAX_VALUE - 1, ((ChunkRequest) ((Mono<?>) chunks.getValue()).block()).getNumber());
+        var sent = (RangeRequest) ((Mono<?>) range.getValue()).block();
+        assertEquals(Integer.MAX_VALUE, sent.getFrom());
+        assertEquals(4294967311L, sent.getTo());
+    }
+
+    @Test
+    public void testRangeHappyPath() {
+        when(mockService.getRange(any())).thenReturn(Flux.just(
+                LongChunk.newBuilder().addAllPrimes(Longs.asList(1_000_000_007L, 1_000_000_009L)).build(),
+                LongChunk.newBuilder().addAllPrimes(Longs.asList(1_000_000_021L)).build()
+        ));
+
+        var result = grpcPrimeService.primeRange(1_000_000_000L, 1_000_000_030L)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(1_000_000_007L, 1_000_000_009L, 1_000_000_021L), result);
+    }
+
+    static Flux<LongChunk> rangePrimes(RangeRequest request) {
+        var primes = LongStream.rangeClosed(Math.max(2, request.getFrom()), request.getTo())
+                .filter(n -> LongStream.rangeClosed(2, (long) Math.sqrt(n)).noneMatch(d -> n % d == 0))
+                .boxed()
+                .collect(toList());
+        // two chunks, the first partition is the slowest
+        int half = primes.size() / 2;
+        return Flux.just(primes.subList(0, half), primes.subList(half, primes.size()))
+                .map(chunk -> LongChunk.newBuilder().addAllPrimes(chunk).build())
+                .delayElements(Duration.ofMillis(request.getFrom() == 0 ? 50 : 1));
+    }
+
+    @Test
+    public void largeRangeIsScattered() {
+        var requests = new ConcurrentLinkedQueue<RangeRequest>();
+        //noinspection unchecked
+        when(mockService.getRange(any())).thenAnswer(invocation -> ((Mono<RangeRequest>) invocation.getArgument(0))
+                .doOnNext(requests::add)
+                .flatMapMany(GrpcPrimeServiceTest::rangePrimes));
+        config.setScatterThreshold(10L);
+        config.setScatterPartitions(3);
+
+        var result = grpcPrimeService.primeRange(0, 100).collectList().block();
+
+        var expected = rangePrimes(RangeRequest.newBuilder().setFrom(0).setTo(100).build())
+                .flatMapIterable(LongChunk::getPrimesList)
+                .collectList()
+                .block();
+        assertEquals(expected, result);
+        var bounds = requests.stream()
+                .sorted(Comparator.comparingLong(RangeRequest::getFrom))
+                .map(r -> List.of(r.getFrom(), r.getTo()))
+                .collect(toList());
+        assertEquals(List.of(List.of(0L, 33L), List.of(34L, 67L), List.of(68L, 100L)), bounds);
+    }
+
+    @Test
+    public void largePrimeRequestIsScattered() {
+        //noinspection unchecked
+        when(mockService.getChunks(any())).thenAnswer(invocation -> ((Mono<ChunkRequest>) invocation.getArgument(0))
+                .map(r -> RangeRequest.newBuilder().setFrom(r.getFrom()).setTo(r.getNumber()).build())
+                .flatMapMany(GrpcPrimeServiceTest::rangePrimes)
+                .map(chunk -> Chunk.newBuilder()
+                        .addAllPrimes(chunk.getPrimesList().stream().map(Long::intValue).collect(toList()))
+                        .build()));
+        config.setScatterThreshold(10L);
+
+        var result = grpcPrimeService.prime(30).collectList().block();
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11, 13, 17, 19, 23, 29), result);
+        verify(mockService, times(4)).getChunks(any());
+        verify(mockService, times(0)).getRange(any());
+    }
+
+    @Test
+    public void testCountingQueries() {
+        when(mockService.getCount(any())).thenReturn(Mono.just(CountResponse.newBuilder().setCount(25).build()));
+        when(mockService.getNth(any())).thenReturn(Mono.just(Response.newBuilder().setPrime(97).build()));
+        //noinspection unchecked
+        when(mockService.getLastPrime(any())).thenReturn(
+                Mono.just(LastPrimeResponse.newBuilder().setPrime(97).build()),
+                Mono.just(LastPrimeResponse.newBuilder().build())
+        );
+
+        assertEquals(25, grpcPrimeService.count(100).block());
+        assertEquals(97, grpcPrimeService.nth(25).block());
+        assertEquals(97, grpcPrimeService.lastPrime(100).block());
+        assertNull(grpcPrimeService.lastPrime(1).block());
+    }
+
+    @Test
+    public void testPrimalityInBatches() {
+        config.setPrimalityBatchSize(2);
+        when(mockService.isPrime(any())).thenAnswer(invocation -> {
+            Mono<PrimalityRequest> request = invocation.getArgument(0);
+            return request.map(r -> PrimalityResponse.newBuilder()
+                    .addAllPrime(r.getNumbersList().stream().map(n -> n == 2 || n == 3 || n == 5).collect(toList()))
+                    .build());
+        });
+
+        var result = grpcPrimeService.isPrime(new long[]{1, 2, 3, 4, 5}).block();
+
+        assertArrayEquals(new boolean[]{false, true, true, false, true}, result);
+        verify(mockService, times(3)).isPrime(any());
+        assertArrayEquals(new boolean[0], grpcPrimeService.isPrime(new long[0]).block());
+    }
+
+    @Test
+    public void primalityBatchesAreSentConcurrently() {
+        config.setPrimalityBatchSize(2);
+        var batches = 8;
+        var received = new AtomicInteger();
+        var allReceived = new CompletableFuture<Void>();
+        when(mockService.isPrime(any())).thenAnswer(invocation -> {
+            Mono<PrimalityRequest> request = invocation.getArgument(0);
+            return request
+                    .doOnNext(r -> {
+                        if (received.incrementAndGet() == batches) allReceived.complete(null);
+                    })
+                    // no batch is answered until every batch is in flight
+                    .delayUntil(r -> Mono.fromFuture(allReceived).timeout(Duration.ofSeconds(5)))
+                    .map(r -> PrimalityResponse.newBuilder()
+                            .addAllPrime(r.getNumbersList().stream().map(n -> n % 2 == 1).collect(toList()))
+                            .build());
+        });
+
+        var numbers = LongStream.range(0, 2 * batches).toArray();
+        var result = grpcPrimeService.isPrime(numbers).block(Duration.ofSeconds(10));
+
+        assertEquals(batches, received.get());
+        for (int i = 0; i < numbers.length; ++i) assertEquals(i % 2 == 1, result[i]);
+    }
+
+    @Test
+    public void invalidPrimalityBatchSizeIsRejected() {
+        config.setPrimalityBatchSize(0);
+        var metrics = new UpstreamMetrics(registry, new UpstreamMetrics.UpstreamMetricsConfig());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new GrpcPrimeService(ReactorServiceGrpc.newReactorStub(channel), config, metrics));
+    }
+
     @Test
     public void retry() {
         //noinspection unchecked
-        when(mockService.get(any())).thenReturn(
+        when(mockService.getChunks(any())).thenReturn(
                 Flux.error(new IllegalStateException()),
                 Flux.error(new IllegalStateException()),
                 primes(2, 3, 5, 7, 11)
@@ -92,10 +310,165 @@ class GrpcPrimeServiceTest {
         assertEquals(Lists.newArrayList(2, 3, 5, 7, 11), result);
     }
 
+    @Test
+    public void retryResumesAfterTheLastDeliveredPrime() {
+        var request = ArgumentCaptor.forClass(Mono.class);
+        //noinspection unchecked
+        when(mockService.getChunks(request.capture())).thenReturn(
+                primes(2, 3, 5, 7).concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))),
+                Flux.error(new StatusRuntimeException(Status.UNAVAILABLE)),
+                primes(11, 13));
+
+        var result = grpcPrimeService.prime(13)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11, 13), result);
+        verify(mockService, times(0)).getRange(any());
+        request.getAllValues().stream().skip(1).forEach(sent -> {
+            var chunks = (ChunkRequest) ((Mono<?>) sent).block();
+            assertEquals(8, chunks.getFrom());
+            assertEquals(13, chunks.getNumber());
+        });
+        assertEquals(2, registry.get("proxy.upstream.retries").tag("method", "getChunks").counter().count());
+    }
+
+    @Test
+    public void retriesAreCountedFromTheLastDeliveredPrime() {
+        config.setMaxRetry(1);
+        when(mockService.getChunks(any())).thenReturn(
+                primes(2, 3).concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))),
+                primes(5, 7).concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))),
+                primes(11, 13));
+
+        var result = grpcPrimeService.prime(13)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11, 13), result);
+        assertEquals(2, registry.get("proxy.upstream.retries").tag("method", "getChunks").counter().count());
+    }
+
+    @Test
+    public void retriesWithoutProgressAreLimited() {
+        config.setMaxRetry(1);
+        when(mockService.getChunks(any())).thenReturn(
+                primes(2, 3).concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))),
+                Flux.error(new StatusRuntimeException(Status.UNAVAILABLE)),
+                primes(5, 7));
+
+        var result = grpcPrimeService.prime(7).collectList();
+
+        assertThrows(RuntimeException.class, result::block);
+        verify(mockService, times(2)).getChunks(any());
+    }
+
+    @Test
+    public void rangeRetryResumesAfterTheLastDeliveredPrime() {
+        var request = ArgumentCaptor.forClass(Mono.class);
+        //noinspection unchecked
+        when(mockService.getRange(request.capture())).thenReturn(
+                Flux.just(LongChunk.newBuilder().addAllPrimes(Longs.asList(101, 103)).build())
+                        .concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))),
+                Flux.just(LongChunk.newBuilder().addAllPrimes(Longs.asList(107, 109)).build()));
+
+        var result = grpcPrimeService.primeRange(100, 110)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(101L, 103L, 107L, 109L), result);
+        var resumed = (RangeRequest) ((Mono<?>) request.getAllValues().get(1)).block();
+        assertEquals(104, resumed.getFrom());
+        assertEquals(110, resumed.getTo());
+    }
+
+    @Test
+    public void completedStreamIsNotResumed() {
+        when(mockService.getChunks(any())).thenReturn(
+                primes(2, 3, 5, 7).concatWith(Flux.error(new StatusRuntimeException(Status.UNAVAILABLE))));
+
+        var result = grpcPrimeService.primeLong(7)
+                .collectList()
+                .block();
+
+        assertEquals(Lists.newArrayList(2L, 3L, 5L, 7L), result);
+        verify(mockService, times(1)).getChunks(any());
+        verify(mockService, times(0)).getRange(any());
+    }
+
+    @Test
+    public void prefixIsServedFromTheCache() {
+        var request = ArgumentCaptor.forClass(Mono.class);
+        when(mockService.getChunks(request.capture())).thenReturn(primes(2, 3, 5, 7, 11, 13, 17, 19));
+        config.setPrefixCacheLimit(20);
+        var service = new GrpcPrimeService(ReactorServiceGrpc.newReactorStub(channel), config,
+                new UpstreamMetrics(registry, new UpstreamMetrics.UpstreamMetricsConfig()));
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11), service.prime(12).collectList().block());
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11, 13), service.prime(13).collectList().block());
+        assertEquals(List.of(), service.prime(1).collectList().block());
+
+        verify(mockService, times(1)).getChunks(any());
+        assertEquals(20, ((ChunkRequest) ((Mono<?>) request.getValue()).block()).getNumber());
+    }
+
+    @Test
+    public void remainderIsRequestedAboveTheLimit() {
+        var request = ArgumentCaptor.forClass(Mono.class);
+        //noinspection unchecked
+        when(mockService.getChunks(request.capture())).thenReturn(primes(2, 3, 5, 7, 11, 13, 17, 19), primes(23, 29));
+        config.setPrefixCacheLimit(20);
+        var service = new GrpcPrimeService(ReactorServiceGrpc.newReactorStub(channel), config,
+                new UpstreamMetrics(registry, new UpstreamMetrics.UpstreamMetricsConfig()));
+
+        assertEquals(Lists.newArrayList(2, 3, 5, 7, 11, 13, 17, 19, 23, 29), service.prime(30).collectList().block());
+
+        verify(mockService, times(0)).getRange(any());
+        var remainder = (ChunkRequest) ((Mono<?>) request.getAllValues().get(1)).block();
+        assertEquals(21, remainder.getFrom());
+        assertEquals(30, remainder.getNumber());
+    }
+
+    @Test
+    public void failedCacheLoadIsRepeated() {
+        //noinspection unchecked
+        when(mockService.getChunks(any())).thenReturn(
+                Flux.error(new StatusRuntimeException(Status.INVALID_ARGUMENT)),
+                primes(2, 3, 5, 7)
+        );
+        config.setPrefixCacheLimit(10);
+        var service = new GrpcPrimeService(ReactorServiceGrpc.newReactorStub(channel), config,
+                new UpstreamMetrics(registry, new UpstreamMetrics.UpstreamMetricsConfig()));
+
+        assertThrows(StatusRuntimeException.class, () -> service.prime(5).collectList().block());
+        assertEquals(Lists.newArrayList(2, 3, 5), service.prime(5).collectList().block());
+        assertEquals(Lists.newArrayList(2, 3, 5, 7), service.prime(10).collectList().block());
+        verify(mockService, times(2)).getChunks(any());
+    }
+
+    @Test
+    public void upstreamMetrics() {
+        //noinspection unchecked
+        when(mockService.getChunks(any())).thenReturn(
+                Flux.error(new IllegalStateException()),
+                Flux.error(new IllegalStateException()),
+                primes(2, 3, 5, 7, 11)
+        );
+
+        grpcPrimeService.prime(11).blockLast();
+
+        assertEquals(2, registry.get("proxy.upstream.retries")
+                .tags("method", "getChunks", "code", "UNKNOWN").counter().count());
+        assertEquals(3, registry.get("proxy.upstream.duration").tag("method", "getChunks").timer().count());
+        assertEquals(1, registry.get("proxy.upstream.first.prime").tag("method", "getChunks").timer().count());
+        assertEquals(5, registry.get("proxy.upstream.primes").tag("method", "getChunks").summary().totalAmount());
+        assertEquals(0, registry.get("proxy.upstream.streams.active").gauge().value());
+    }
+
     @Test
     public void retryFailsDueToExceedingLimit() {
         //noinspection unchecked
-        when(mockService.get(any())).thenReturn(
+        when(mockService.getChunks(any())).thenReturn(
                 Flux.error(new IllegalStateException()),
                 Flux.error(new IllegalStateException()),
                 Flux.error(new IllegalStateException()),
@@ -115,7 +488,7 @@ class GrpcPrimeServiceTest {
     @Test
     public void retryFailsDueToIllegalArgument() {
         //noinspection unchecked
-        when(mockService.get(any())).thenReturn(
+        when(mockService.getChunks(any())).thenReturn(
                 Flux.error(new StatusRuntimeException(Status.INVALID_ARGUMENT)),
                 primes(2, 3, 5, 7, 11)
         );
@@ -130,7 +503,7 @@ class GrpcPrimeServiceTest {
     @Test
     public void unknownIsRetried() {
         //noinspection unchecked
-        when(mockService.get(any())).thenReturn(
+        when(mockService.getChunks(any())).thenReturn(
                 Flux.error(new StatusRuntimeException(Status.UNKNOWN)),
                 primes(2, 3, 5, 7, 11)
         );
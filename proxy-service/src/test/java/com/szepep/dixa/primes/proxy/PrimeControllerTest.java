@@ -7,17 +7,22 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @WebFluxTest
-@Import(UIIDCorrelationId.class)
+@Import({UIIDCorrelationId.class, PrimeController.EncoderConfig.class})
 class PrimeControllerTest {
 
     @MockBean
@@ -28,7 +33,7 @@ class PrimeControllerTest {
 
     @Test
     public void testOutput() {
-        when(primeService.prime(anyInt())).thenReturn(Flux.just(2, 3, 5, 7, 11));
+        when(primeService.primeChunks(anyInt())).thenReturn(Flux.just(new int[]{2, 3, 5}, new int[]{7, 11}));
 
         client.get()
                 .uri("/prime/12")
@@ -39,12 +44,12 @@ class PrimeControllerTest {
                 .expectBody(String.class)
                 .consumeWith(body -> assertEquals("2,3,5,7,11", body.getResponseBody()));
 
-        verify(primeService).prime(eq(12));
+        verify(primeService).primeChunks(eq(12));
     }
 
     @Test
     public void testSinglePrime() {
-        when(primeService.prime(anyInt())).thenReturn(Flux.just(2));
+        when(primeService.primeChunks(anyInt())).thenReturn(Flux.just(new int[]{2}));
 
         client.get()
                 .uri("/prime/2")
@@ -55,7 +60,72 @@ class PrimeControllerTest {
                 .expectBody(String.class)
                 .consumeWith(body -> assertEquals("2", body.getResponseBody()));
 
-        verify(primeService).prime(eq(2));
+        verify(primeService).primeChunks(eq(2));
+    }
+
+    @Test
+    public void testNumberAboveIntRange() {
+        when(primeService.primeLongChunks(anyLong())).thenReturn(Flux.just(new long[]{2L, 3L, 4294967311L}));
+
+        client.get()
+                .uri("/prime/4294967311")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .consumeWith(body -> assertEquals("2,3,4294967311", body.getResponseBody()));
+
+        verify(primeService).primeLongChunks(eq(4294967311L));
+    }
+
+    @Test
+    public void testNdjson() {
+        when(primeService.primeChunks(anyInt())).thenReturn(Flux.just(new int[]{2, 3, 5}, new int[]{7, 11}));
+
+        client.get()
+                .uri("/prime/12")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_NDJSON)
+                .expectBody(String.class).isEqualTo("2\n3\n5\n7\n11\n");
+    }
+
+    @Test
+    public void testBinaryFormats() {
+        when(primeService.primeChunks(anyInt())).thenReturn(Flux.just(new int[]{2, 3, 5}, new int[]{7, 137}));
+
+        client.get()
+                .uri("/prime/137")
+                .accept(MediaType.APPLICATION_OCTET_STREAM)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .expectBody(byte[].class).isEqualTo(new byte[]{2, 1, 2, 2, (byte) 0x82, 1});
+        client.get()
+                .uri("/prime/137")
+                .accept(MediaType.parseMediaType("application/x-int32-le"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class).isEqualTo(new byte[]{2, 0, 0, 0, 3, 0, 0, 0, 5, 0, 0, 0, 7, 0, 0, 0,
+                        (byte) 137, 0, 0, 0});
+    }
+
+    @Test
+    public void testInt32AboveIntRange() {
+        client.get()
+                .uri("/prime/4294967311")
+                .accept(MediaType.parseMediaType("application/x-int32-le"))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void testUnsupportedFormat() {
+        client.get()
+                .uri("/prime/12")
+                .accept(MediaType.APPLICATION_XML)
+                .exchange()
+                .expectStatus().isEqualTo(406);
     }
 
     @Test
@@ -69,4 +139,83 @@ class PrimeControllerTest {
                         "The number must be greater or equal to 0",
                         body.getResponseBody()));
     }
+
+    @Test
+    public void testRange() {
+        when(primeService.primeRangeChunks(anyLong(), anyLong()))
+                .thenReturn(Flux.just(new long[]{1_000_000_007L}, new long[]{1_000_000_009L}));
+
+        client.get()
+                .uri("/prime/range?from=1000000000&to=1000000010")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .consumeWith(body -> assertEquals("1000000007,1000000009", body.getResponseBody()));
+
+        verify(primeService).primeRangeChunks(eq(1_000_000_000L), eq(1_000_000_010L));
+    }
+
+    @Test
+    public void testInvalidRange() {
+        client.get()
+                .uri("/prime/range?from=10&to=5")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class)
+                .consumeWith(body -> assertEquals(
+                        "The lower limit must be less or equal to the upper limit",
+                        body.getResponseBody()));
+    }
+
+    @Test
+    public void testCountingQueries() {
+        when(primeService.count(anyInt())).thenReturn(Mono.just(25));
+        when(primeService.nth(anyInt())).thenReturn(Mono.just(97));
+        when(primeService.lastPrime(anyInt())).thenReturn(Mono.just(97));
+
+        client.get().uri("/prime/count/100").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("25");
+        client.get().uri("/prime/nth/25").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("97");
+        client.get().uri("/prime/last/100").exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("97");
+
+        verify(primeService).count(eq(100));
+        verify(primeService).nth(eq(25));
+        verify(primeService).lastPrime(eq(100));
+    }
+
+    @Test
+    public void testNoLastPrime() {
+        when(primeService.lastPrime(anyInt())).thenReturn(Mono.empty());
+
+        client.get().uri("/prime/last/1").exchange()
+                .expectStatus().isNotFound()
+                .expectBody(String.class).isEqualTo("There is no prime less or equal to 1");
+    }
+
+    @Test
+    public void testInvalidIndex() {
+        client.get().uri("/prime/nth/0").exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("The index must be greater than 0");
+    }
+
+    @Test
+    public void testPrimalityCheck() {
+        when(primeService.isPrime(any())).thenReturn(Mono.just(new boolean[]{false, true, true}));
+
+        client.post()
+                .uri("/prime/check")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[1, 2, 4294967311]")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("[false,true,true]");
+
+        verify(primeService).isPrime(aryEq(new long[]{1, 2, 4294967311L}));
+    }
 }
\ No newline at end of file
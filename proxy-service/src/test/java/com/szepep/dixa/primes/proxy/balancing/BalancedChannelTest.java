@@ -0,0 +1,293 @@
+package com.szepep.dixa.primes.proxy.balancing;
+
+import com.google.common.base.Ticker;
+import com.szepep.dixa.primes.proxy.GrpcConfiguration;
+import com.szepep.dixa.proto.Chunk;
+import com.szepep.dixa.proto.ChunkRequest;
+import com.szepep.dixa.proto.CountResponse;
+import com.szepep.dixa.proto.ReactorServiceGrpc;
+import com.szepep.dixa.proto.Request;
+import com.szepep.dixa.proto.ServiceGrpc;
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalancedChannelTest {
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final AtomicLong now = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return now.get();
+        }
+    };
+    private GrpcConfiguration.GrpcConfig config;
+
+    /**
+     * Backend answering the count requests by its index.
+     */
+    private static class Backend extends ReactorServiceGrpc.ServiceImplBase {
+        private final int index;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger streams = new AtomicInteger();
+        private volatile boolean failing = false;
+        private volatile Status failure = Status.UNAVAILABLE;
+
+        Backend(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Mono<CountResponse> getCount(Mono<Request> request) {
+            calls.incrementAndGet();
+            if (failing) return Mono.error(failure.asRuntimeException());
+            return Mono.just(CountResponse.newBuilder().setCount(index).build());
+        }
+
+        @Override
+        public Flux<Chunk> getChunks(Mono<ChunkRequest> request) {
+            streams.incrementAndGet();
+            return Flux.never();
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        config = new GrpcConfiguration.GrpcConfig();
+        config.getOutlierEjection().setConsecutiveFailures(2);
+        config.getOutlierEjection().setEjectionTime(Duration.ofSeconds(10));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channels.forEach(ManagedChannel::shutdownNow);
+        servers.forEach(Server::shutdownNow);
+    }
+
+    private List<String> start(int count) throws IOException {
+        var names = new ArrayList<String>();
+        for (int i = 0; i < count; ++i) {
+            var backend = new Backend(i);
+            var name = InProcessServerBuilder.generateName();
+            servers.add(InProcessServerBuilder.forName(name).directExecutor().addService(backend).build().start());
+            backends.add(backend);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private BalancedChannel channel(List<String> targets) {
+        return new BalancedChannel(targets, name -> {
+            var channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+            channels.add(channel);
+            return channel;
+        }, config, ticker);
+    }
+
+    /**
+     * @return Index of the backend or -1 when the call failed.
+     */
+    private static int count(ReactorServiceGrpc.ReactorServiceStub stub) {
+        return stub.getCount(Request.newBuilder().setNumber(10).build())
+                .map(CountResponse::getCount)
+                .onErrorReturn(-1)
+                .block();
+    }
+
+    @Test
+    public void roundRobinSpreadsTheCalls() throws IOException {
+        var stub = ReactorServiceGrpc.newReactorStub(channel(start(3)));
+
+        for (int i = 0; i < 9; ++i) count(stub);
+
+        backends.forEach(backend -> assertEquals(3, backend.calls.get()));
+    }
+
+    @Test
+    public void everyBackendHasItsChannels() throws IOException {
+        config.setChannelsPerBackend(3);
+        var stub = ReactorServiceGrpc.newReactorStub(channel(start(2)));
+
+        for (int i = 0; i < 12; ++i) count(stub);
+
+        assertEquals(6, channels.size());
+        backends.forEach(backend -> assertEquals(6, backend.calls.get()));
+    }
+
+    @Test
+    public void leastOutstandingAvoidsTheBusyBackend() throws IOException {
+        config.setBalancing(Balancing.LEAST_OUTSTANDING);
+        var stub = ReactorServiceGrpc.newReactorStub(channel(start(2)));
+
+        var stream = stub.getChunks(ChunkRequest.newBuilder().setNumber(100).build()).subscribe();
+        try {
+            var busy = backends.get(0).streams.get() == 1 ? 0 : 1;
+            for (int i = 0; i < 4; ++i) assertEquals(1 - busy, count(stub));
+        } finally {
+            stream.dispose();
+        }
+    }
+
+    @Test
+    public void failingBackendIsEjected() throws IOException {
+        var channel = channel(start(3));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        var failing = backends.get(1);
+        failing.failing = true;
+
+        for (int i = 0; i < 6; ++i) count(stub);
+        assertEquals(2, failing.calls.get());
+        assertEquals(2, channel.available().size());
+
+        for (int i = 0; i < 10; ++i) assertTrue(count(stub) >= 0);
+        assertEquals(2, failing.calls.get());
+
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        assertEquals(3, channel.available().size());
+        failing.failing = false;
+        for (int i = 0; i < 6; ++i) count(stub);
+        assertEquals(4, failing.calls.get());
+    }
+
+    @Test
+    public void failedRequestDoesNotEjectTheBackend() throws IOException {
+        var channel = channel(start(3));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        var failing = backends.get(1);
+        failing.failure = Status.INTERNAL;
+        failing.failing = true;
+
+        for (int i = 0; i < 12; ++i) count(stub);
+        assertEquals(4, failing.calls.get());
+        assertEquals(3, channel.available().size());
+    }
+
+    @Test
+    public void eligibleBackendsAreKeptUntilTheEjectionChanges() throws IOException {
+        var channel = channel(start(3));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        var all = channel.eligible();
+        assertEquals(3, all.size());
+
+        for (int i = 0; i < 3; ++i) count(stub);
+        assertSame(all, channel.eligible(), "No snapshot per call");
+
+        backends.get(1).failing = true;
+        for (int i = 0; i < 6; ++i) count(stub);
+        var ejected = channel.eligible();
+        assertEquals(2, ejected.size());
+        for (int i = 0; i < 4; ++i) count(stub);
+        assertSame(ejected, channel.eligible());
+
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        channel.pick();
+        assertEquals(3, channel.eligible().size(), "Rebuilt once the ejection ends");
+    }
+
+    @Test
+    public void repeatedEjectionIsLonger() throws IOException {
+        var channel = channel(start(3));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        backends.get(1).failing = true;
+
+        for (int i = 0; i < 6; ++i) count(stub);
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        // two more failures after the first ejection
+        for (int i = 0; i < 6; ++i) count(stub);
+        assertEquals(2, channel.available().size());
+
+        now.addAndGet(Duration.ofSeconds(11).toNanos());
+        assertEquals(2, channel.available().size());
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        assertEquals(3, channel.available().size());
+    }
+
+    @Test
+    public void ejectionIsLimited() throws IOException {
+        var channel = channel(start(2));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        backends.forEach(backend -> backend.failing = true);
+
+        for (int i = 0; i < 20; ++i) count(stub);
+
+        assertEquals(1, channel.available().size());
+    }
+
+    @Test
+    public void allBackendsAreUsedIfAllAreEjected() throws IOException {
+        config.getOutlierEjection().setMaxEjectionPercent(100);
+        var channel = channel(start(2));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+        backends.forEach(backend -> backend.failing = true);
+
+        for (int i = 0; i < 4; ++i) count(stub);
+        assertEquals(0, channel.available().size());
+
+        backends.forEach(backend -> backend.failing = false);
+        assertTrue(count(stub) >= 0);
+    }
+
+    @Test
+    public void removedBackendIsShutDown() throws IOException {
+        var targets = start(3);
+        var channel = channel(targets.subList(0, 2));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+
+        channel.update(targets.subList(1, 3));
+        for (int i = 0; i < 4; ++i) count(stub);
+
+        assertTrue(channels.get(0).isShutdown());
+        assertEquals(0, backends.get(0).calls.get());
+        assertEquals(2, backends.get(1).calls.get());
+        assertEquals(2, backends.get(2).calls.get());
+    }
+
+    @Test
+    public void callCancelledBeforeTheStartIsNotOutstanding() throws IOException {
+        var channel = channel(start(1));
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+
+        channel.newCall(ServiceGrpc.getGetCountMethod(), CallOptions.DEFAULT).cancel("Not needed", null);
+        assertEquals(0, channel.pick().outstanding());
+
+        var stream = stub.getChunks(ChunkRequest.newBuilder().setNumber(100).build()).subscribe();
+        assertEquals(1, channel.pick().outstanding());
+        stream.dispose();
+        assertEquals(0, channel.pick().outstanding());
+    }
+
+    @Test
+    public void callsFailUntilTheFirstBackend() throws IOException {
+        var channel = channel(List.of());
+        var stub = ReactorServiceGrpc.newReactorStub(channel);
+
+        assertEquals(-1, count(stub));
+        assertNull(channel.pick());
+
+        channel.update(start(1));
+        assertEquals(0, count(stub));
+    }
+}
@@ -0,0 +1,187 @@
+package com.szepep.dixa.primes.proxy.encoding;
+
+import com.google.protobuf.ByteString;
+import com.szepep.dixa.proto.DeltaVarint;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PrimeEncoderTest {
+
+    private final DefaultDataBufferFactory factory = DefaultDataBufferFactory.sharedInstance;
+
+    private static List<String> text(Flux<DataBuffer> buffers) {
+        return buffers.map(buffer -> buffer.toString(StandardCharsets.UTF_8)).collectList().block();
+    }
+
+    private static byte[] bytes(Flux<DataBuffer> buffers) {
+        var joined = DataBufferUtils.join(buffers).block();
+        var bytes = new byte[joined.readableByteCount()];
+        joined.read(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void oneBufferPerChunk() {
+        var chunks = Flux.just(new int[]{2, 3, 5}, new int[0], new int[]{7, 11});
+
+        assertEquals(List.of("2,3,5", ",7,11"),
+                text(PrimeEncoder.encodeInts(chunks, PrimeFormat.COMMA_SEPARATED, factory)));
+    }
+
+    @Test
+    public void chunkIsEmittedWithoutWaitingForTheNext() {
+        var chunks = Flux.just(new int[]{2, 3, 5}).concatWith(Flux.never());
+
+        var first = PrimeEncoder.encodeInts(chunks, PrimeFormat.COMMA_SEPARATED, factory).next()
+                .block(Duration.ofSeconds(1));
+
+        assertEquals("2,3,5", first.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void smallChunksAreMergedUntilTheFlushSize() {
+        var chunks = Flux.just(new int[]{2, 3}, new int[0], new int[]{5}, new int[]{7, 11, 13, 17}, new int[]{19});
+
+        assertEquals(List.of("2,3,5", ",7,11,13,17", ",19"), text(PrimeEncoder.encodeInts(chunks,
+                PrimeFormat.COMMA_SEPARATED, factory, 3, Duration.ofHours(1))));
+    }
+
+    @Test
+    public void mergedChunkIsFlushedAfterTheInterval() {
+        var chunks = Flux.just(new long[]{2, 3}).concatWith(Flux.never());
+
+        var first = PrimeEncoder.encodeLongs(chunks, PrimeFormat.NDJSON, factory, 100, Duration.ofMillis(20)).next()
+                .block(Duration.ofSeconds(1));
+
+        assertEquals("2\n3\n", first.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void mergedChunksKeepTheStateOfTheFormat() {
+        var primes = IntStream.range(0, 100).map(i -> 2 * i + 1).toArray();
+        var chunks = Flux.range(0, 10).map(i -> Arrays.copyOfRange(primes, 10 * i, 10 * i + 10));
+
+        var encoded = bytes(PrimeEncoder.encodeInts(chunks, PrimeFormat.DELTA_VARINT, factory, 25,
+                Duration.ofHours(1)));
+
+        assertArrayEquals(bytes(PrimeEncoder.encodeInts(Flux.just(primes), PrimeFormat.DELTA_VARINT, factory)),
+                encoded);
+    }
+
+    @Test
+    public void invalidFlushIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> PrimeEncoder.encodeInts(Flux.empty(),
+                PrimeFormat.NDJSON, factory, 0, Duration.ofMillis(50)));
+        assertThrows(IllegalArgumentException.class, () -> PrimeEncoder.encodeInts(Flux.empty(),
+                PrimeFormat.NDJSON, factory, 10, Duration.ZERO));
+    }
+
+    @Test
+    public void everySubscriptionStartsWithoutSeparator() {
+        var encoded = PrimeEncoder.encodeInts(Flux.just(new int[]{2}, new int[]{3}), PrimeFormat.COMMA_SEPARATED,
+                factory);
+
+        assertEquals(List.of("2", ",3"), text(encoded));
+        assertEquals(List.of("2", ",3"), text(encoded));
+    }
+
+    @Test
+    public void longPrimes() {
+        var chunks = Flux.just(new long[]{2, 4294967311L}, new long[]{Long.MAX_VALUE});
+
+        assertEquals(List.of("2,4294967311", "," + Long.MAX_VALUE),
+                text(PrimeEncoder.encodeLongs(chunks, PrimeFormat.COMMA_SEPARATED, factory)));
+    }
+
+    @Test
+    public void largeChunkIsCopiedInBlocks() {
+        var primes = IntStream.range(0, 10_000).map(i -> Integer.MAX_VALUE - i).toArray();
+
+        var expected = IntStream.of(primes).mapToObj(Integer::toString).collect(Collectors.joining(","));
+        assertEquals(List.of(expected),
+                text(PrimeEncoder.encodeInts(Flux.just(primes), PrimeFormat.COMMA_SEPARATED, factory)));
+    }
+
+    @Test
+    public void ndjson() {
+        var chunks = Flux.just(new long[]{2, 3}, new long[]{4294967311L});
+
+        assertEquals("2\n3\n4294967311\n",
+                String.join("", text(PrimeEncoder.encodeLongs(chunks, PrimeFormat.NDJSON, factory))));
+    }
+
+    @Test
+    public void deltaVarintContinuesAcrossChunks() {
+        var primes = IntStream.rangeClosed(2, 100_000)
+                .filter(n -> IntStream.rangeClosed(2, (int) Math.sqrt(n)).noneMatch(d -> n % d == 0))
+                .toArray();
+        var chunks = Flux.range(0, (primes.length + 999) / 1000)
+                .map(i -> Arrays.copyOfRange(primes, i * 1000, Math.min(primes.length, i * 1000 + 1000)));
+
+        var encoded = bytes(PrimeEncoder.encodeInts(chunks, PrimeFormat.DELTA_VARINT, factory));
+
+        assertArrayEquals(primes, DeltaVarint.decode(ByteString.copyFrom(encoded)));
+        assertArrayEquals(DeltaVarint.encode(primes).toByteArray(), encoded);
+    }
+
+    @Test
+    public void int32LittleEndian() {
+        var chunks = Flux.just(new int[]{2, 3}, new int[]{Integer.MAX_VALUE});
+
+        var encoded = ByteBuffer.wrap(bytes(PrimeEncoder.encodeInts(chunks, PrimeFormat.INT32_LE, factory)))
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer();
+
+        var decoded = new int[encoded.remaining()];
+        encoded.get(decoded);
+        assertArrayEquals(new int[]{2, 3, Integer.MAX_VALUE}, decoded);
+    }
+
+    @Test
+    public void int32RejectsLongPrimes() {
+        var chunks = Flux.just(new long[]{4294967311L});
+
+        assertThrows(IllegalArgumentException.class, () ->
+                PrimeEncoder.encodeLongs(chunks, PrimeFormat.INT32_LE, factory).blockLast());
+    }
+
+    @Test
+    public void negotiation() {
+        assertEquals(PrimeFormat.COMMA_SEPARATED, PrimeFormat.negotiate(List.of()));
+        assertEquals(PrimeFormat.COMMA_SEPARATED, PrimeFormat.negotiate(MediaType.parseMediaTypes("*/*")));
+        assertEquals(PrimeFormat.NDJSON,
+                PrimeFormat.negotiate(MediaType.parseMediaTypes("application/x-ndjson")));
+        assertEquals(PrimeFormat.DELTA_VARINT,
+                PrimeFormat.negotiate(MediaType.parseMediaTypes("text/plain;q=0.5, application/octet-stream")));
+        assertEquals(PrimeFormat.INT32_LE,
+                PrimeFormat.negotiate(MediaType.parseMediaTypes("application/x-int32-le, */*;q=0.1")));
+    }
+
+    @Test
+    public void sizes() {
+        var numbers = List.of(0L, 9L, 10L, 99L, 100L, 127L, 128L, 16383L, 16384L, 2147483647L, Long.MAX_VALUE);
+
+        assertEquals(numbers.stream().map(n -> Long.toString(n).length()).collect(toList()),
+                numbers.stream().map(PrimeEncoder::digits).collect(toList()));
+        assertEquals(List.of(1, 1, 1, 1, 1, 1, 2, 2, 3, 5, 9),
+                numbers.stream().map(PrimeEncoder::varintBytes).collect(toList()));
+    }
+}